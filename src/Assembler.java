@@ -1,26 +1,86 @@
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.function.Supplier;
 import java.lang.Exception;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 
 class Assembler {
     CPU cpu;
     Map<String, Integer> labels;
+    private Map<String, MemoryOperand> memoryOperands = new HashMap<>(); // Of the loaded program
     Map<String, Variable> variables = new HashMap<>();
     Map<String, String> constants = new HashMap<>();
-    String[] codeLines;
+    Program program;
+    int[] flagLiveness; // Flags each line has to compute, see FlagLiveness
+    int liveFlags = CPU.ALL_FLAGS;
+    boolean optimize; // Run the Optimizer over programs before executing them
+    private GuestThreads threads; // Only made once a program spawns a thread
+    private volatile StateMonitor monitor; // Published to at block boundaries once someone asked for it
+    byte[] coverage; // Hit counts of taken branches for the Fuzzer, length is a power of two
+    boolean flagAnalysis = true; // When off every flag is computed, like the original interpreter
+    boolean loopIdioms = true; // Run recognised fill/copy/sum/search loops in bulk, see LoopIdioms
+    private LoopIdioms.Idiom[] idioms; // By label line, null when loopIdioms is off
+    boolean inlineProcedures = true; // Run calls to small leaf procedures in place, see Procedures
+    private Procedures.Procedure[] inlineCalls; // By CALL line, null when off or there are none
+    int bulkBranches; // Taken branches the last runBlock did not dispatch: skipped loop iterations, inlined CALL/RET
     int currentSegment;
+    private final int[] vectorScratch = new int[8]; // Memory operand of packed instructions
+    private static final int BLOCK = 1 << 30; // Bytes per block operation of a REP, whole elements of any size
+    int nextLine; // Line to run after the current instruction, set by jumps, CALL and RET
+    int maxIterations = 10000; // Set your maximum iteration count
+    int iterationCount;
+    private volatile ExecutionListener listener;
+    private volatile boolean[] breakpointLines = new boolean[0];
+    private int rewindLine = -1; // Where to go on after a listener stepped backwards, see rewind
+    PrintStream out = System.out; // Where PRINT and friends write, see out()
+    Supplier<PrintStream> openOutput; // When set, replaces out on the first output, JasmVM captures with it
+    InputStream in = System.in; // What the read syscall gets for fd 0
+    final Syscalls syscalls = new Syscalls(this);
+    int errorLine = -1; // Set when the last run stopped on an error
+    String errorMessage;
+    boolean iterationLimitReached;
 
     public Assembler() {
-        cpu = new CPU();
+        this(1024);
+    }
+
+    public Assembler(long memorySize) {
+        cpu = new CPU(memorySize);
         labels = new HashMap<>();
-        variables = new HashMap<>();
         currentSegment = 0; // 0 = .code, 1 = .data, 2 = .stack
     }
 
+    // Clears everything a run leaves behind, keeping the allocated CPU and maps for the next one
+    public void reset() {
+        cpu.reset();
+        variables.clear();
+        constants.clear();
+        currentSegment = 0;
+        iterationCount = 0;
+        errorLine = -1;
+        errorMessage = null;
+        iterationLimitReached = false;
+        liveFlags = CPU.ALL_FLAGS;
+        threads = null;
+        syscalls.closeAll();
+    }
+
+    // Runs one instruction outside a program, checked first since the handlers trust their operands
     public void execute(String instruction, int currentLine) throws Exception {
-        String[] parts = instruction.trim().split("\\s+|,\\s*");
+        String[] parts = Program.split(instruction);
+        String problem = new Verifier(labels, variables.keySet()).check(parts, currentSegment == 1);
+        if (problem != null) {
+            throw new Exception(problem);
+        }
+        execute(parts, currentLine);
+    }
+
+    public void execute(String[] parts, int currentLine) throws Exception {
         String opcode = parts[0].toUpperCase();
 
         switch (opcode) {
@@ -31,31 +91,23 @@ class Assembler {
                 handleSub(parts);
                 break;
             case "MOV":
-                if (parts.length != 3) {
-                    throw new Exception("Syntax error: Invalid number of operands for MOV operation");
-                }
                 String dest = parts[1].toUpperCase();
                 String src = parts[2].toUpperCase();
-                if (!isRegister(dest) && !isVariable(dest) && !isIndirect(dest)) {
-                    throw new Exception("Syntax error: Invalid destination operand for MOV operation");
-                }
-                if (!isRegister(src) && !isVariable(src) && !isNumeric(src) && !isIndirect(src)) {
-                    throw new Exception("Syntax error: Invalid source operand for MOV operation");
-                }
-                if (isRegister(dest) && isRegister(src) && getRegisterSize(dest) != getRegisterSize(src)) {
-                    throw new Exception("Syntax error: Size mismatch between source and destination registers for MOV operation");
-                }
-                // Implement the MOV operation
                 int srcValue;
                 if (isIndirect(src)) {
-                    int address = getIndirectAddress(src);
-                    srcValue = cpu.getMemory(address);
+                    MemoryOperand memory = memoryOperand(src);
+                    srcValue = cpu.getMemory(address(memory), accessSize(memory, dest));
                 } else {
                     srcValue = getValue(src);
                 }
                 if (isIndirect(dest)) {
-                    int address = getIndirectAddress(dest);
-                    cpu.setMemory(address, srcValue);
+                    MemoryOperand memory = memoryOperand(dest);
+                    int size = accessSize(memory, src);
+                    if (size == 8) {
+                        cpu.setMemoryLong(address(memory), srcValue); // Sign extended, like a 64-bit immediate
+                    } else {
+                        cpu.setMemory(address(memory), srcValue, size);
+                    }
                 } else {
                     cpu.setRegister(dest, srcValue);
                 }
@@ -116,6 +168,44 @@ class Assembler {
             case "JLE":
                 handleJle(parts);
                 break;
+            case "JC":
+            case "JB":
+                handleJc(parts);
+                break;
+            case "JNC":
+            case "JAE":
+                handleJnc(parts);
+                break;
+            case "JA":
+                handleJa(parts);
+                break;
+            case "JBE":
+                handleJbe(parts);
+                break;
+            case "JO":
+                handleJo(parts);
+                break;
+            case "JNO":
+                handleJno(parts);
+                break;
+            case "JS":
+                handleJs(parts);
+                break;
+            case "JNS":
+                handleJns(parts);
+                break;
+            case "JP":
+                handleJp(parts);
+                break;
+            case "JNP":
+                handleJnp(parts);
+                break;
+            case "JCXZ":
+                handleJcxz(parts);
+                break;
+            case "JECXZ":
+                handleJecxz(parts);
+                break;
             case "PRINT_REG":
                 handlePrintReg(parts);
                 break;
@@ -147,37 +237,11 @@ class Assembler {
                 handlePtr(parts);
                 break;
             case "PRINT":
-                if (parts.length != 2) {
-                    throw new Exception("Syntax error: Invalid number of operands for PRINT operation");
-                }
                 String operand = parts[1].toUpperCase();
                 if (isRegister(operand)) {
-                    System.out.println(cpu.getRegister(operand));
-                } else if (isVariable(operand)) {
-                    System.out.println(variables.get(operand).value);
+                    out().println(cpu.getRegister(operand));
                 } else {
-                    String[] operandParts = operand.split(" ");
-                    if (operandParts.length != 2) {
-                        throw new Exception("Syntax error: Invalid operand for PRINT operation");
-                    }
-                    String keyword = operandParts[0];
-                    String var = operandParts[1].toUpperCase();
-                    switch (keyword) {
-                        case "LENGTHOF":
-                            handleLengthof(new String[]{keyword, var});
-                            break;
-                        case "SIZEOF":
-                            handleSizeof(new String[]{keyword, var});
-                            break;
-                        case "PTR":
-                            handlePtr(new String[]{keyword, var});
-                            break;
-                        case "OFFSET":
-                            handleOffset(new String[]{keyword, var});
-                            break;
-                        default:
-                            throw new Exception("Syntax error: Invalid operand for PRINT operation");
-                    }
+                    out().println(variables.get(operand).value);
                 }
                 break;
                 case "TEST":
@@ -189,6 +253,77 @@ class Assembler {
             case "LOOP":
                 handleLoop(parts);
                 break;
+            case "LOOPZ":
+            case "LOOPE":
+                handleLoopz(parts);
+                break;
+            case "LOOPNZ":
+            case "LOOPNE":
+                handleLoopnz(parts);
+                break;
+            case "MOVSB":
+            case "MOVSW":
+            case "MOVSD":
+            case "STOSB":
+            case "STOSW":
+            case "STOSD":
+            case "LODSB":
+            case "LODSW":
+            case "LODSD":
+            case "CMPSB":
+            case "CMPSW":
+            case "CMPSD":
+            case "SCASB":
+            case "SCASW":
+            case "SCASD":
+                handleStringOp(null, opcode);
+                break;
+            case "REP":
+            case "REPE":
+            case "REPZ":
+            case "REPNE":
+            case "REPNZ":
+                handleStringOp(opcode, parts[1].toUpperCase());
+                break;
+            case "MOVDQU":
+            case "VMOVDQU":
+                handleMovdqu(parts, opcode);
+                break;
+            case "MOVD":
+            case "VMOVD":
+                handleMovd(parts, opcode);
+                break;
+            case "PEXTRD":
+            case "VPEXTRD":
+                handlePextrd(parts, opcode);
+                break;
+            case "VPBROADCASTD":
+                handleBroadcast(parts);
+                break;
+            case "PADDD":
+            case "VPADDD":
+            case "PSUBD":
+            case "VPSUBD":
+            case "PMULLD":
+            case "VPMULLD":
+            case "PAND":
+            case "VPAND":
+            case "POR":
+            case "VPOR":
+            case "PXOR":
+            case "VPXOR":
+            case "PCMPEQD":
+            case "VPCMPEQD":
+            case "PCMPGTD":
+            case "VPCMPGTD":
+                handlePacked(parts, opcode);
+                break;
+            case "STD":
+                cpu.setFlag("DF", true);
+                break;
+            case "CLD":
+                cpu.setFlag("DF", false);
+                break;
             case ".CODE":
                 currentSegment = 0;
                 break;
@@ -201,39 +336,55 @@ class Assembler {
             case "EQU":
             case "TEXTEQU":
             case "=":
-                if (parts.length != 3) {
-                    throw new Exception("Syntax error: Invalid number of operands for " + opcode + " operation");
-                }
                 String constName = parts[1].toUpperCase();
                 String constValue = parts[2];
                 constants.put(constName, constValue);
                 break;
 
-            case "CALL":
-                if (parts.length != 2) {
-                    throw new Exception("Syntax error: Invalid number of operands for CALL operation");
+            case "SYSCALL":
+                syscalls.call(cpu);
+                break;
+            case "INT":
+                if (!parts[1].equalsIgnoreCase("80H") && getValue(parts[1].toUpperCase()) != 128) {
+                    throw new Exception("Runtime error: Unsupported interrupt " + parts[1]);
+                }
+                syscalls.call(cpu);
+                break;
+
+            case "SPAWN":
+                int entry = getLabelLine(parts[1]);
+                if (threads == null) {
+                    threads = new GuestThreads(cpu);
+                }
+                cpu.setRegister("EAX", threads.spawn(entry));
+                break;
+            case "YIELD":
+                if (threads != null) {
+                    nextLine = threads.yield(currentLine + 1);
                 }
-                String label = parts[1];
-                Integer address = labels.get(label);
-                if (address == null) {
-                    throw new Exception("Syntax error: Undefined label " + label);
+                break;
+            case "JOIN":
+                if (threads == null) {
+                    threads = new GuestThreads(cpu);
                 }
+                nextLine = threads.join(getValue(parts[1].toUpperCase()), currentLine + 1);
+                break;
+
+            case "CALL":
                 cpu.returnAddressStack.push(currentLine + 1);
-                execute(codeLines[address], address);
+                nextLine = labels.get(parts[1]);
                 break;
             case "RET":
                 if (!cpu.returnAddressStack.isEmpty()) {
-                    int returnAddress = cpu.returnAddressStack.pop();
-                    execute(codeLines[returnAddress], returnAddress);
+                    nextLine = cpu.returnAddressStack.pop();
+                } else if (threads != null && threads.inSpawnedThread()) {
+                    nextLine = program.size(); // Returning from its entry ends a spawned thread
                 } else {
                     throw new Exception("Runtime error: Stack underflow");
                 }
                 break;
 
             case "PRINT_MEM":
-                if (parts.length != 2) {
-                    throw new Exception("Syntax error: Invalid number of operands for PRINT_MEM operation");
-                }
                 String reg = parts[1].toUpperCase();
                 if (isRegister(reg)) {
                     int memAddress = cpu.getRegister(reg);
@@ -250,9 +401,9 @@ class Assembler {
                     for (byte b : littleEndianBytes) {
                         sb.append(String.format("%02x", b));
                     }
-                    System.out.println("Memory[" + reg + "]: " + sb.toString());
+                    out().println("Memory[" + reg + "]: " + sb.toString());
                 } else {
-                    System.out.println("Register not found: " + reg);
+                    out().println("Register not found: " + reg);
                 }
                 break;
             default:
@@ -261,7 +412,7 @@ class Assembler {
                 } else if (currentSegment == 1) {
                     handleVariableDefinition(parts);
                 } else {
-                    System.out.println("Unsupported instruction: " + opcode);
+                    out().println("Unsupported instruction: " + opcode);
                 }
                 break;
         }
@@ -311,59 +462,35 @@ class Assembler {
             variables.put(varName, variable);
         }
     }
-    private void handleAdd(String[] parts) throws Exception {
-        if (parts.length != 3) {
-            throw new Exception("Syntax error: Invalid number of operands for ADD operation");
-        }
+    private void handleAdd(String[] parts) {
         String dest = parts[1].toUpperCase();
         String src = parts[2].toUpperCase();
-        if (!isRegister(dest) && !isVariable(dest) && !isIndirect(dest)) {
-            throw new Exception("Syntax error: Invalid destination operand for ADD operation");
-        }
-        if (!isRegister(src) && !isVariable(src) && !isNumeric(src)) {
-            throw new Exception("Syntax error: Invalid source operand for ADD operation");
-        }
-        if (isRegister(dest) && isRegister(src) && getRegisterSize(dest) != getRegisterSize(src)) {
-            throw new Exception("Syntax error: Size mismatch between source and destination registers for ADD operation");
-        }
-        // Implement the ADD operation
         int srcValue = getValue(src);
         int destValue = 0;
         int result = 0;
         if (isIndirect(dest)) {
-            int address = getIndirectAddress(dest);
-            destValue = cpu.getMemory(address);
+            MemoryOperand memory = memoryOperand(dest);
+            int address = address(memory);
+            int size = accessSize(memory, src);
+            destValue = cpu.getMemory(address, size);
             result = destValue + srcValue;
-            cpu.setMemory(address, result);
+            cpu.setMemory(address, result, size);
         } else {
             destValue = getValue(dest);
             result = destValue + srcValue;
             setValue(dest, result);
         }
-        cpu.updateFlags(result, srcValue, destValue, true);
+        cpu.updateFlags(result, srcValue, destValue, true, liveFlags);
     }
 
-    private void handleSub(String[] parts) throws Exception {
-    if (parts.length != 3) {
-        throw new Exception("Syntax error: Invalid number of operands for SUB operation");
-    }
+    private void handleSub(String[] parts) {
     String dest = parts[1].toUpperCase();
     String src = parts[2].toUpperCase();
-    if (!isRegister(dest) && !isVariable(dest)) {
-        throw new Exception("Syntax error: Invalid destination operand for SUB operation");
-    }
-    if (!isRegister(src) && !isVariable(src) && !isNumeric(src)) {
-        throw new Exception("Syntax error: Invalid source operand for SUB operation");
-    }
-    if (isRegister(dest) && isRegister(src) && getRegisterSize(dest) != getRegisterSize(src)) {
-        throw new Exception("Syntax error: Size mismatch between source and destination registers for SUB operation");
-    }
-    // Implement the SUB operation
     int srcValue = getValue(src);
     int destValue = getValue(dest);
     int result = destValue - srcValue;
     cpu.setRegister(dest, result);
-    cpu.updateFlags(result, srcValue, destValue, false);
+    cpu.updateFlags(result, srcValue, destValue, false, liveFlags);
 }
 
     private void handleMov(String[] parts) {
@@ -373,116 +500,66 @@ class Assembler {
         cpu.setRegister(dest, srcValue);
     }
 
-    private void handleMovsx(String[] parts) throws Exception {
-    if (parts.length != 3) {
-        throw new Exception("Syntax error: Invalid number of operands for MOVSX operation");
-    }
+    private void handleMovsx(String[] parts) {
     String dest = parts[1].toUpperCase();
     String src = parts[2].toUpperCase();
-    if (!isRegister(dest) || (!isRegister(src) && !isVariable(src))) {
-        throw new Exception("Syntax error: Invalid operand for MOVSX operation");
-    }
     int srcValue = getValue(src);
-    if (getRegisterSize(dest) == 32 && getRegisterSize(src) == 16) {
+    if (getRegisterSize(dest) == 32 && sourceSize(src) == 16) {
         srcValue = (srcValue << 16) >> 16; // Sign extend from 16 bits
-    } else if (getRegisterSize(dest) == 32 && getRegisterSize(src) == 8) {
+    } else if (getRegisterSize(dest) == 32 && sourceSize(src) == 8) {
         srcValue = (srcValue << 24) >> 24; // Sign extend from 8 bits
-    } else if (getRegisterSize(dest) == 16 && getRegisterSize(src) == 8) {
-        srcValue = (srcValue << 8) >> 8; // Sign extend from 8 bits
     } else {
-        throw new Exception("Syntax error: Size mismatch between source and destination registers for MOVSX operation");
+        srcValue = (srcValue << 8) >> 8; // Sign extend from 8 bits, 16 from 8 is all that is left
     }
     cpu.setRegister(dest, srcValue);
 }
 
-private void handleMovzx(String[] parts) throws Exception {
-    if (parts.length != 3) {
-        throw new Exception("Syntax error: Invalid number of operands for MOVZX operation");
-    }
+private void handleMovzx(String[] parts) {
     String dest = parts[1].toUpperCase();
     String src = parts[2].toUpperCase();
-    if (!isRegister(dest) || (!isRegister(src) && !isVariable(src))) {
-        throw new Exception("Syntax error: Invalid operand for MOVZX operation");
-    }
     int srcValue = getValue(src);
-    if (getRegisterSize(dest) == 32 && getRegisterSize(src) == 16) {
+    if (getRegisterSize(dest) == 32 && sourceSize(src) == 16) {
         srcValue = srcValue & 0xFFFF; // Zero extend from 16 bits
-    } else if (getRegisterSize(dest) == 32 && getRegisterSize(src) == 8) {
-        srcValue = srcValue & 0xFF; // Zero extend from 8 bits
-    } else if (getRegisterSize(dest) == 16 && getRegisterSize(src) == 8) {
+    } else if (getRegisterSize(dest) == 32 && sourceSize(src) == 8) {
         srcValue = srcValue & 0xFF; // Zero extend from 8 bits
     } else {
-        throw new Exception("Syntax error: Size mismatch between source and destination registers for MOVZX operation");
+        srcValue = srcValue & 0xFF; // Zero extend from 8 bits, 16 from 8 is all that is left
     }
     cpu.setRegister(dest, srcValue);
 }
 
-    private void handleXchg(String[] parts) throws Exception {
-    if (parts.length != 3) {
-        throw new Exception("Syntax error: Invalid number of operands for XCHG operation");
-    }
+    private void handleXchg(String[] parts) {
     String dest = parts[1].toUpperCase();
     String src = parts[2].toUpperCase();
-    if (!isRegister(dest) && !isVariable(dest)) {
-        throw new Exception("Syntax error: Invalid destination operand for XCHG operation");
-    }
-    if (!isRegister(src) && !isVariable(src) && !isNumeric(src)) {
-        throw new Exception("Syntax error: Invalid source operand for XCHG operation");
-    }
-    if (isRegister(dest) && isRegister(src) && getRegisterSize(dest) != getRegisterSize(src)) {
-        throw new Exception("Syntax error: Size mismatch between source and destination registers for XCHG operation");
-    }
-    // Implement the XCHG operation
     int destValue = getValue(dest);
     int srcValue = getValue(src);
     setValue(dest, srcValue);
     setValue(src, destValue);
 }
 
-    private void handleNeg(String[] parts) throws Exception {
-    if (parts.length != 2) {
-        throw new Exception("Syntax error: Invalid number of operands for NEG operation");
-    }
+    private void handleNeg(String[] parts) {
     String operand = parts[1].toUpperCase();
-    if (!isRegister(operand) && !isVariable(operand)) {
-        throw new Exception("Syntax error: Invalid operand for NEG operation");
-    }
-    // Implement the NEG operation
     int operandValue = getValue(operand);
     int result = -operandValue;
     setValue(operand, result);
-    cpu.updateFlags(result, 0, operandValue, false);
+    cpu.updateFlags(result, 0, operandValue, false, liveFlags);
 }
 
-    private void handleInc(String[] parts) throws Exception {
-    if (parts.length != 2) {
-        throw new Exception("Syntax error: Invalid number of operands for INC operation");
-    }
+    private void handleInc(String[] parts) {
     String operand = parts[1].toUpperCase();
-    if (!isRegister(operand) && !isVariable(operand)) {
-        throw new Exception("Syntax error: Invalid operand for INC operation");
-    }
-    // Implement the INC operation
     int operandValue = getValue(operand);
     int result = operandValue + 1;
     setValue(operand, result);
-    cpu.updateFlags(result, 1, operandValue, true);
+    cpu.updateFlags(result, 1, operandValue, true, liveFlags);
     cpu.setFlag("CF", cpu.getFlag("CF")); // Preserve the original Carry flag
 }
 
-private void handleDec(String[] parts) throws Exception {
-    if (parts.length != 2) {
-        throw new Exception("Syntax error: Invalid number of operands for DEC operation");
-    }
+private void handleDec(String[] parts) {
     String operand = parts[1].toUpperCase();
-    if (!isRegister(operand) && !isVariable(operand)) {
-        throw new Exception("Syntax error: Invalid operand for DEC operation");
-    }
-    // Implement the DEC operation
     int operandValue = getValue(operand);
     int result = operandValue - 1;
     setValue(operand, result);
-    cpu.updateFlags(result, 1, operandValue, false);
+    cpu.updateFlags(result, 1, operandValue, false, liveFlags);
     cpu.setFlag("CF", cpu.getFlag("CF")); // Preserve the original Carry flag
 }
 
@@ -493,7 +570,7 @@ private void handleDec(String[] parts) throws Exception {
         int destValue = cpu.getRegister(dest);
         int result = destValue | srcValue;
         cpu.setRegister(dest, result);
-        cpu.updateFlagsForOrXor(result);
+        cpu.updateFlagsForOrXor(result, liveFlags);
     }
 
     private void handleAnd(String[] parts) {
@@ -503,7 +580,7 @@ private void handleDec(String[] parts) throws Exception {
         int destValue = cpu.getRegister(dest);
         int result = destValue & srcValue;
         cpu.setRegister(dest, result);
-        cpu.updateFlagsForAnd(result);
+        cpu.updateFlagsForAnd(result, liveFlags);
     }
 
     private void handleXor(String[] parts) {
@@ -513,7 +590,7 @@ private void handleDec(String[] parts) throws Exception {
         int destValue = cpu.getRegister(dest);
         int result = destValue ^ srcValue;
         cpu.setRegister(dest, result);
-        cpu.updateFlagsForOrXor(result);
+        cpu.updateFlagsForOrXor(result, liveFlags);
     }
 
     private void handlePush(String[] parts) {
@@ -528,187 +605,176 @@ private void handleDec(String[] parts) throws Exception {
         setValue(operand, value);
     }
 
-    private void handleJmp(String[] parts) {
-        String label = parts[1];
-        try {
-            executeLabel(label);
-        } catch (Exception e) {
-            System.out.println("Error executing label " + label + ": " + e.getMessage());
-        }
+    private void handleJmp(String[] parts) throws Exception {
+        nextLine = getLabelLine(parts[1]);
     }
 
-    private void handleJz(String[] parts) {
+    private int getLabelLine(String label) {
+        return labels.get(label);
+    }
+
+    private void handleJz(String[] parts) throws Exception {
         if (cpu.getFlag("ZF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJnz(String[] parts) {
+    private void handleJnz(String[] parts) throws Exception {
         if (!cpu.getFlag("ZF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJc(String[] parts) {
+    private void handleJc(String[] parts) throws Exception {
         if (cpu.getFlag("CF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJnc(String[] parts) {
+    private void handleJnc(String[] parts) throws Exception {
         if (!cpu.getFlag("CF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJo(String[] parts) {
+    private void handleJo(String[] parts) throws Exception {
         if (cpu.getFlag("OF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJno(String[] parts) {
+    private void handleJno(String[] parts) throws Exception {
         if (!cpu.getFlag("OF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJs(String[] parts) {
+    private void handleJs(String[] parts) throws Exception {
         if (cpu.getFlag("SF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJns(String[] parts) {
+    private void handleJns(String[] parts) throws Exception {
         if (!cpu.getFlag("SF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJp(String[] parts) {
+    private void handleJp(String[] parts) throws Exception {
         if (cpu.getFlag("PF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJnp(String[] parts) {
+    private void handleJnp(String[] parts) throws Exception {
         if (!cpu.getFlag("PF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJe(String[] parts) {
+    private void handleJe(String[] parts) throws Exception {
         if (cpu.getFlag("ZF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJne(String[] parts) {
+    private void handleJne(String[] parts) throws Exception {
         if (!cpu.getFlag("ZF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJcxz(String[] parts) {
+    private void handleJcxz(String[] parts) throws Exception {
         if (cpu.getRegister("CX") == 0) {
             handleJmp(parts);
         }
     }
 
-    private void handleJecxz(String[] parts) {
+    private void handleJecxz(String[] parts) throws Exception {
         if (cpu.getRegister("ECX") == 0) {
             handleJmp(parts);
         }
     }
 
-    private void handleJrcxz(String[] parts) {
+    private void handleJrcxz(String[] parts) throws Exception {
         if (cpu.getRegister("RCX") == 0) {
             handleJmp(parts);
         }
     }
 
-    private void handleJa(String[] parts) {
+    private void handleJa(String[] parts) throws Exception {
         if (!cpu.getFlag("CF") && !cpu.getFlag("ZF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJae(String[] parts) {
+    private void handleJae(String[] parts) throws Exception {
         if (!cpu.getFlag("CF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJb(String[] parts) {
+    private void handleJb(String[] parts) throws Exception {
         if (cpu.getFlag("CF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJbe(String[] parts) {
+    private void handleJbe(String[] parts) throws Exception {
         if (cpu.getFlag("CF") || cpu.getFlag("ZF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJg(String[] parts) {
+    private void handleJg(String[] parts) throws Exception {
         if (!cpu.getFlag("ZF") && (cpu.getFlag("SF") == cpu.getFlag("OF"))) {
             handleJmp(parts);
         }
     }
 
-    private void handleJge(String[] parts) {
+    private void handleJge(String[] parts) throws Exception {
         if (cpu.getFlag("SF") == cpu.getFlag("OF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJl(String[] parts) {
+    private void handleJl(String[] parts) throws Exception {
         if (cpu.getFlag("SF") != cpu.getFlag("OF")) {
             handleJmp(parts);
         }
     }
 
-    private void handleJle(String[] parts) {
+    private void handleJle(String[] parts) throws Exception {
         if (cpu.getFlag("ZF") || (cpu.getFlag("SF") != cpu.getFlag("OF"))) {
             handleJmp(parts);
         }
     }
 
 
-    private void handleLoopz(String[] parts) {
-        String label = parts[1];
+    private void handleLoopz(String[] parts) throws Exception {
         int ecx = cpu.getRegister("ECX");
         if (ecx != 0 && cpu.getFlag("ZF")) {
             cpu.setRegister("ECX", ecx - 1);
-            try {
-                executeLabel(label);
-            } catch (Exception e) {
-                System.out.println("Error executing label " + label + ": " + e.getMessage());
-            }
+            handleJmp(parts);
         }
     }
 
-    private void handleLoope(String[] parts) {
+    private void handleLoope(String[] parts) throws Exception {
         handleLoopz(parts); // LOOPE is equivalent to LOOPZ
     }
 
 
 
-    private void handleLoopnz(String[] parts) {
-        String label = parts[1];
+    private void handleLoopnz(String[] parts) throws Exception {
         int ecx = cpu.getRegister("ECX");
         if (ecx != 0 && !cpu.getFlag("ZF")) {
             cpu.setRegister("ECX", ecx - 1);
-            try {
-                executeLabel(label);
-            } catch (Exception e) {
-                System.out.println("Error executing label " + label + ": " + e.getMessage());
-            }
+            handleJmp(parts);
         }
     }
 
-    private void handleLoopne(String[] parts) {
+    private void handleLoopne(String[] parts) throws Exception {
         handleLoopnz(parts); // LOOPNE is equivalent to LOOPNZ
     }
 
@@ -716,11 +782,15 @@ private void handleDec(String[] parts) throws Exception {
 
 
     private void handlePrintReg(String[] parts) throws Exception {
-        if (parts.length != 2) {
-            throw new Exception("Syntax error: Invalid operand for PRINT_REG operation");
-        }
         String reg = parts[1].toUpperCase();
-        if (isRegister(reg)) {
+        if (CPU.isVectorRegister(reg)) {
+            int[] lanes = cpu.getVectorRegister(reg);
+            StringBuilder sb = new StringBuilder(reg + ":");
+            for (int i = 0; i < CPU.getVectorLanes(reg); i++) {
+                sb.append(' ').append(String.format("%08x", Integer.reverseBytes(lanes[i])));
+            }
+            out().println(sb);
+        } else if (isRegister(reg)) {
             int value = cpu.getRegister(reg);
             // Convert the value to a byte array
             byte[] bytes = ByteBuffer.allocate(4).putInt(value).array();
@@ -734,102 +804,325 @@ private void handleDec(String[] parts) throws Exception {
             for (byte b : littleEndianBytes) {
                 sb.append(String.format("%02x", b));
             }
-            System.out.println(reg + ": " + sb.toString());
+            out().println(reg + ": " + sb.toString());
         } else {
-            System.out.println("Register not found: " + reg);
+            out().println("Register not found: " + reg);
         }
     }
 
     private void handlePrintFlag(String[] parts) throws Exception {
-        if (parts.length != 2) {
-            throw new Exception("Syntax error: Invalid operand for PRINT_FLAG operation");
-        }
         String flag = parts[1].toUpperCase();
         if (cpu.getFlag(flag)) {
-            System.out.println(flag + ": " + cpu.getFlag(flag));
+            out().println(flag + ": " + cpu.getFlag(flag));
         } else {
-            System.out.println("Flag not set: " + flag);
+            out().println("Flag not set: " + flag);
         }
     }
 
     private void handleShowStack() {
-        System.out.println("Stack: " + cpu.stack);
+        out().println("Stack: " + cpu.stack);
     }
 
     private void handleShowData() {
-        System.out.println("Data Segment:");
+        out().println("Data Segment:");
         for (Map.Entry<String, Variable> entry : variables.entrySet()) {
             String varName = entry.getKey();
             Variable variable = entry.getValue();
-            System.out.println("Variable Name: " + varName);
-            System.out.println("Address: " + variable.address);
-            System.out.println("Size: " + variable.size);
-            System.out.println("Length: " + variable.length);
-            System.out.println("Value: " + variable.value);
-            System.out.println("--------------------");
+            out().println("Variable Name: " + varName);
+            out().println("Address: " + variable.address);
+            out().println("Size: " + variable.size);
+            out().println("Length: " + variable.length);
+            out().println("Value: " + variable.value);
+            out().println("--------------------");
         }
     }
 
-    private void executeLabel(String label) throws Exception {
-        Integer lineIndex = labels.get(label);
-        if (lineIndex == null) {
-            throw new Exception("Label not found: " + label);
+    public void runCode(String code) {
+        runProgram(Program.parse(code));
+    }
+
+    public void runProgram(Program program) {
+        // Execute instructions, switching between the plain and the hooked loop
+        // whenever a listener is attached or detached
+        int line = load(program);
+        if (monitor != null) {
+            monitor.publish(cpu, line, 0, true);
         }
-        for (int i = lineIndex + 1; i < codeLines.length; i++) {
-            String line = codeLines[i].trim();
-            if (line.endsWith(":")) {
-                labels.put(line.substring(0, line.length() - 1), i);
-                line = line.substring(0, line.length() - 1).trim(); // Remove the label
+        while (line >= 0 && line < program.size()) {
+            if (listener == null) {
+                cpu.listener = null;
+                line = runPlain(line, false, true);
+            } else {
+                cpu.listener = listener;
+                line = runHooked(line);
             }
-            if (!line.isEmpty()) { // If there's an instruction on this line, execute it
-                try {
-                    execute(line, i);
-                } catch (Exception e) {
-                    System.out.println("Error executing line " + i + ": " + e.getMessage());
-                    break;
+            if (line < 0 || line >= program.size()) {
+                line = nextThread();
+            }
+        }
+        cpu.listener = null;
+        liveFlags = CPU.ALL_FLAGS;
+        StateMonitor watcher = monitor;
+        if (watcher != null) {
+            watcher.publish(cpu, errorLine >= 0 ? errorLine : program.size(), iterationCount, false);
+        }
+    }
+
+    // Lets other threads watch this assembler's state while it runs, see StateMonitor. Publishing
+    // starts with the first call, runs without a monitor do not pay for it.
+    public StateMonitor monitor() {
+        StateMonitor watcher = monitor;
+        if (watcher == null) {
+            synchronized (this) {
+                watcher = monitor;
+                if (watcher == null) {
+                    watcher = new StateMonitor();
+                    monitor = watcher;
                 }
             }
         }
+        return watcher;
     }
 
-    public void runCode(String code) {
-        int maxIterations = 10000; // Set your maximum iteration count
-        int iterationCount = 0;
-
-        codeLines = code.split("\n");
-        // First pass: identify labels
-        for (int i = 0; i < codeLines.length; i++) {
-            String line = codeLines[i].trim();
-            if (line.isEmpty()) {
-                continue; // Skip empty lines
+    // Sets up the program and its data segment, returns the entry line or -1 when the Verifier
+    // found problems, which are all printed
+    int load(Program program) {
+        List<Verifier.Problem> problems = program.problems();
+        if (optimize && problems.isEmpty()) {
+            program = program.optimized();
+        }
+        this.program = program;
+        labels = program.labels;
+        memoryOperands = program.memoryOperands();
+        threads = null;
+        rewindLine = -1;
+        if (flagAnalysis) {
+            flagLiveness = program.flagLiveness();
+        } else {
+            flagLiveness = new int[program.size()];
+            Arrays.fill(flagLiveness, CPU.ALL_FLAGS);
+        }
+        idioms = loopIdioms ? program.loopIdioms() : null;
+        inlineCalls = inlineProcedures ? program.inlineCalls() : null;
+        iterationCount = 0;
+        if (!problems.isEmpty()) {
+            for (Verifier.Problem problem : problems) {
+                out().println("Error in line " + problem.line + ": " + problem.message);
             }
-            if (line.endsWith(":")) {
-                labels.put(line.substring(0, line.length() - 1), i);
+            errorLine = problems.get(0).line;
+            errorMessage = problems.get(0).message;
+            return -1;
+        }
+        for (int i = 0; i < program.data.length; i++) {
+            try {
+                handleVariableDefinition(program.data[i]);
+            } catch (Exception e) {
+                fail(program.dataLines[i], e);
+                return -1;
             }
         }
-        // Second pass: execute instructions
-        for (int i = 0; i < codeLines.length; i++) {
-            String line = codeLines[i].trim();
-            if (line.isEmpty()) {
-                continue; // Skip empty lines
+        return program.entry;
+    }
+
+    // Runs one block of a loaded program, up to and including the next taken branch. Returns
+    // the line to continue from, or -1 when the program is done.
+    int runBlock(int line) {
+        return runBlock(line, false);
+    }
+
+    // With fastPaths loop idioms and inlined calls run inside the block too, bulkBranches then
+    // says how many blocks the plain engine needs to get to the same point
+    int runBlock(int line, boolean fastPaths) {
+        bulkBranches = 0;
+        if (line < 0 || line >= program.size()) {
+            return -1;
+        }
+        int next = runPlain(line, true, fastPaths);
+        return next < 0 || next >= program.size() ? nextThread() : next;
+    }
+
+    // The running guest thread went off the end of the program, returns the line the next one
+    // continues at, or -1 when the run is over
+    private int nextThread() {
+        if (threads == null || errorLine >= 0) {
+            return -1;
+        }
+        try {
+            return threads.exit();
+        } catch (Exception e) {
+            fail(program.size(), e);
+            return -1;
+        }
+    }
+
+    // Runs without any hook checks, only looks at the listener when a branch is taken so a
+    // debugger attached mid-run takes over at the next block boundary. Returns -1 when done.
+    private int runPlain(int line, boolean singleBlock, boolean fastPaths) {
+        try {
+            String[][] instructions = program.parts;
+            while (line < instructions.length) {
+                String[] parts = instructions[line];
+                nextLine = line + 1;
+                if (parts != null) {
+                    Procedures.Procedure procedure = inlineCalls == null ? null : inlineCalls[line];
+                    if (procedure != null && fastPaths && coverage == null) {
+                        // A call to a small leaf procedure: run its body here, then go on after
+                        // the CALL. Failing lines and counts are those the call would have had
+                        int call = line;
+                        cpu.returnAddressStack.push(call + 1);
+                        bulkBranches++; // The CALL, counted first in case the body fails
+                        countIteration();
+                        for (int body : procedure.body) {
+                            line = body;
+                            liveFlags = flagLiveness[body];
+                            execute(instructions[body], body);
+                            countIteration();
+                        }
+                        line = procedure.ret;
+                        cpu.returnAddressStack.pop();
+                        countIteration();
+                        line = call;
+                        bulkBranches++; // The RET
+                    } else {
+                        liveFlags = flagLiveness[line];
+                        execute(parts, line);
+                        countIteration();
+                    }
+                } else if (idioms != null && idioms[line] != null && fastPaths && coverage == null) {
+                    // A loop label: skip ahead the iterations that can be done in bulk, every one
+                    // a taken back branch. Not when fuzzing, that counts the branches the loop takes
+                    long skipped = LoopIdioms.skip(idioms[line], cpu, maxIterations - iterationCount);
+                    iterationCount += (int) skipped;
+                    bulkBranches += (int) (skipped / idioms[line].instructions);
+                }
+                if (nextLine != line + 1) {
+                    StateMonitor watcher = monitor;
+                    if (watcher != null) {
+                        watcher.publish(cpu, nextLine, iterationCount, true);
+                    }
+                    if (coverage != null) {
+                        // Hash of the edge, AFL style, so loops and branch directions count separately
+                        coverage[(line * 31 + nextLine) & (coverage.length - 1)]++;
+                    }
+                    if (singleBlock || listener != null) {
+                        return nextLine;
+                    }
+                }
+                line = nextLine;
             }
-            if (!line.endsWith(":")) {
-                try {
-                    execute(line, i);
-                    iterationCount++;
-                    if (iterationCount > maxIterations) {
-                        throw new Exception("Maximum iteration count exceeded, potential infinite loop detected.");
+        } catch (Exception e) {
+            fail(line, e);
+        }
+        return -1;
+    }
+
+    private int runHooked(int line) {
+        try {
+            // A debugger can look at the flags at any point, so compute all of them here
+            liveFlags = CPU.ALL_FLAGS;
+            while (line < program.size()) {
+                ExecutionListener hooks = listener;
+                if (hooks == null) {
+                    return line;
+                }
+                String[] parts = program.parts[line];
+                nextLine = line + 1;
+                if (parts != null) {
+                    boolean[] stops = breakpointLines;
+                    if (line < stops.length && stops[line]) {
+                        hooks.onBreakpoint(line);
+                        if (rewindLine >= 0) {
+                            line = rewindLine;
+                            rewindLine = -1;
+                            continue;
+                        }
+                    }
+                    hooks.onInstructionStart(line);
+                    execute(parts, line);
+                    countIteration();
+                    String opcode = parts[0];
+                    if (FlagLiveness.isBranch(opcode) && !opcode.equals("JMP") && !opcode.equals("CALL")) {
+                        hooks.onConditionalBranch(line, nextLine != line + 1);
+                    }
+                    if (nextLine != line + 1) {
+                        StateMonitor watcher = monitor;
+                        if (watcher != null) {
+                            watcher.publish(cpu, nextLine, iterationCount, true);
+                        }
+                        if (opcode.equals("CALL")) {
+                            hooks.onCall(line, nextLine);
+                        } else if (opcode.equals("RET")) {
+                            hooks.onReturn(line, nextLine);
+                        } else {
+                            hooks.onBranchTaken(line, nextLine);
+                        }
+                    }
+                    hooks.onInstructionRetired(line, program.lines[line].trim());
+                    if (rewindLine >= 0) {
+                        nextLine = rewindLine;
+                        rewindLine = -1;
                     }
-                } catch (Exception e) {
-                    System.out.println("Error executing line " + i + ": " + e.getMessage());
-                    break;
                 }
+                line = nextLine;
+            }
+        } catch (Exception e) {
+            fail(line, e);
+        }
+        return -1;
+    }
+
+    private void fail(int line, Exception e) {
+        errorLine = line;
+        errorMessage = e.getMessage();
+        out().println("Error executing line " + line + ": " + e.getMessage());
+    }
+
+    private void countIteration() throws Exception {
+        iterationCount++;
+        if (iterationCount > maxIterations) {
+            iterationLimitReached = true;
+            throw new Exception("Maximum iteration count exceeded, potential infinite loop detected.");
+        }
+    }
+
+    // The output stream, made now if it is still to be opened
+    PrintStream out() {
+        if (openOutput != null) {
+            out = openOutput.get();
+            openOutput = null;
+        }
+        return out;
+    }
+
+    // Hooks are switched in by the executing thread at the next block boundary, so this can be
+    // called from another thread while the program runs. Pass null to go back to the plain loop.
+    public void setListener(ExecutionListener listener) {
+        this.listener = listener;
+    }
+
+    // Called from a listener hook, or while a hook blocks, after it put the CPU back to the state
+    // before the instruction on line ran: the hooked loop goes on from there instead
+    void rewind(int line) {
+        rewindLine = line;
+    }
+
+    // Breakpoints are kept as a per-line table so the hooked loop only does an array lookup
+    public void setBreakpoints(Collection<Integer> lines) {
+        int size = program == null ? 0 : program.size();
+        for (int line : lines) {
+            size = Math.max(size, line + 1);
+        }
+        boolean[] stops = new boolean[size];
+        for (int line : lines) {
+            if (line >= 0) {
+                stops[line] = true;
             }
         }
+        breakpointLines = stops;
     }
 
     private boolean isRegister(String name) {
-        return cpu.isRegister(name);
+        return CPU.isRegister(name);
     }
 
     private boolean isVariable(String name) {
@@ -845,14 +1138,15 @@ private void handleDec(String[] parts) throws Exception {
         } else if (isVariable(operand)) {
             return (int)variables.get(operand).value;
         } else if (isIndirect(operand)) {
-            return cpu.getMemory(getIndirectAddress(operand));
+            MemoryOperand memory = memoryOperand(operand);
+            return cpu.getMemory(address(memory), memory.size == 0 ? 4 : memory.size);
         } else {
             return Integer.parseInt(operand);
         }
     }
 
     private void printFlags() {
-        System.out.println("Flags: " + cpu.flags);
+        out().println("Flags: " + cpu.flagsToString());
     }
 
     private void handleStc() {
@@ -864,54 +1158,42 @@ private void handleDec(String[] parts) throws Exception {
     }
 
     private void handleLengthof(String[] parts) throws Exception {
-        if (parts.length != 2) {
-            throw new Exception("Syntax error: Invalid operand for LENGTHOF operation");
-        }
         String var = parts[1].toUpperCase();
         if (isVariable(var)) {
             long length = variables.get(var).length;
-            System.out.println("LENGTHOF " + var + ": " + length);
+            out().println("LENGTHOF " + var + ": " + length);
         } else {
-            System.out.println("Variable not found: " + var);
+            out().println("Variable not found: " + var);
         }
     }
 
     private void handleSizeof(String[] parts) throws Exception {
-        if (parts.length != 2) {
-            throw new Exception("Syntax error: Invalid operand for SIZEOF operation");
-        }
         String var = parts[1].toUpperCase();
         if (isVariable(var)) {
             long size = variables.get(var).size;
-            System.out.println("SIZEOF " + var + ": " + size);
+            out().println("SIZEOF " + var + ": " + size);
         } else {
-            System.out.println("Variable not found: " + var);
+            out().println("Variable not found: " + var);
         }
     }
 
     private void handlePtr(String[] parts) throws Exception {
-        if (parts.length != 2) {
-            throw new Exception("Syntax error: Invalid operand for PTR operation");
-        }
         String var = parts[1].toUpperCase();
         if (isVariable(var)) {
             long address = variables.get(var).address;
-            System.out.println("PTR " + var + ": " + address);
+            out().println("PTR " + var + ": " + address);
         } else {
-            System.out.println("Variable not found: " + var);
+            out().println("Variable not found: " + var);
         }
     }
 
     private void handleOffset(String[] parts) throws Exception {
-        if (parts.length != 2) {
-            throw new Exception("Syntax error: Invalid operand for OFFSET operation");
-        }
         String var = parts[1].toUpperCase();
         if (isVariable(var)) {
             long address = variables.get(var).address;
-            System.out.println("OFFSET " + var + ": " + address);
+            out().println("OFFSET " + var + ": " + address);
         } else {
-            System.out.println("Variable not found: " + var);
+            out().println("Variable not found: " + var);
         }
     }
     private void handleTest(String[] parts) {
@@ -920,7 +1202,7 @@ private void handleDec(String[] parts) throws Exception {
         int value1 = getValue(op1);
         int value2 = getValue(op2);
         int result = value1 & value2;
-        cpu.updateFlags(result, value2, value1, true);
+        cpu.updateFlags(result, value2, value1, true, liveFlags);
     }
 
     private void handleCmp(String[] parts) {
@@ -929,24 +1211,279 @@ private void handleDec(String[] parts) throws Exception {
         int value1 = getValue(op1);
         int value2 = getValue(op2);
         int result = value1 - value2;
-        cpu.updateFlags(result, value2, value1, false);
+        cpu.updateFlags(result, value2, value1, false, liveFlags);
     }
 
-    private void handleLoop(String[] parts) {
-        String label = parts[1];
+    private void handleLoop(String[] parts) throws Exception {
         int cx = cpu.getRegister("CX");
         if (cx != 0) {
             cpu.setRegister("CX", cx - 1);
-            try {
-                executeLabel(label);
-            } catch (Exception e) {
-                System.out.println("Error executing label " + label + ": " + e.getMessage());
+            handleJmp(parts);
+        }
+    }
+
+    private void handleStringOp(String prefix, String op) throws Exception {
+        String kind = op.substring(0, 4);
+        int size = op.charAt(4) == 'B' ? 1 : op.charAt(4) == 'W' ? 2 : 4;
+        if (prefix == null) {
+            stringStep(kind, size, liveFlags);
+            return;
+        }
+        boolean compares = kind.equals("CMPS") || kind.equals("SCAS");
+        // MASM treats a bare REP in front of CMPS/SCAS as REPE
+        boolean untilNotEqual = prefix.equals("REP") || prefix.equals("REPE") || prefix.equals("REPZ");
+        int count = cpu.getRegister("ECX");
+        if (count == 0) {
+            return;
+        }
+        if (!repeatAsBlock(kind, size, count, compares, untilNotEqual)) {
+            // Element by element, same as the CPU would do it; also used when the range would fault
+            while (count != 0) {
+                stringStep(kind, size, liveFlags | CPU.ZF); // The loop stops on it even when nothing reads it after
+                count--;
+                cpu.setRegister("ECX", count);
+                if (compares && cpu.getFlag("ZF") != untilNotEqual) {
+                    break;
+                }
             }
         }
     }
 
+    // Runs a whole REP in one block operation, returns false if it has to be done element by element
+    private boolean repeatAsBlock(String kind, int size, int count, boolean compares, boolean untilNotEqual) throws Exception {
+        boolean backward = cpu.getFlag("DF");
+        int esi = cpu.getRegister("ESI");
+        int edi = cpu.getRegister("EDI");
+        long length = (long) count * size;
+        // With DF set the elements run downwards from the current address
+        int sourceLow = backward ? (int) (esi - length + size) : esi;
+        int destinationLow = backward ? (int) (edi - length + size) : edi;
+        boolean usesSource = !kind.equals("STOS") && !kind.equals("SCAS");
+        boolean usesDestination = !kind.equals("LODS");
+        if (count < 0 || (usesSource && !cpu.isMemoryRange(sourceLow, length))
+                || (usesDestination && !cpu.isMemoryRange(destinationLow, length))) {
+            return false;
+        }
+        int delta = backward ? -size : size;
+        switch (kind) {
+            case "MOVS":
+                // Overlapping copies that read bytes already written this REP repeat a pattern, arraycopy would not
+                boolean overlaps = backward ? edi < esi && destinationLow + length > sourceLow
+                        : edi > esi && esi + length > edi;
+                if (overlaps) {
+                    return false;
+                }
+                // In blocks, with 4 GB of memory the length can be more than an int holds
+                for (long done = 0; done < length; done += BLOCK) {
+                    cpu.copyMemory(sourceLow + (int) done, destinationLow + (int) done, (int) Math.min(BLOCK, length - done));
+                }
+                cpu.setRegister("ESI", esi + count * delta);
+                cpu.setRegister("EDI", edi + count * delta);
+                break;
+            case "STOS":
+                int value = cpu.getRegister(accumulatorFor(size));
+                for (long done = 0; done < length; done += BLOCK) {
+                    cpu.fillMemory(destinationLow + (int) done, (int) Math.min(BLOCK, length - done), value, size);
+                }
+                cpu.setRegister("EDI", edi + count * delta);
+                break;
+            case "LODS":
+                cpu.setRegister(accumulatorFor(size), cpu.getMemory(esi + (count - 1) * delta, size));
+                cpu.setRegister("ESI", esi + count * delta);
+                break;
+            default:
+                // CMPS/SCAS: find how many elements the REP gets through, skip to the last one and
+                // run it normally so the flags come out exactly as they would element by element
+                int processed = kind.equals("CMPS") && !backward && untilNotEqual
+                        ? mismatchedElements(esi, edi, count, size)
+                        : scannedElements(kind, size, count, delta, untilNotEqual);
+                int skipped = processed - 1;
+                if (kind.equals("CMPS")) {
+                    cpu.setRegister("ESI", esi + skipped * delta);
+                }
+                cpu.setRegister("EDI", edi + skipped * delta);
+                stringStep(kind, size, liveFlags);
+                cpu.setRegister("ECX", count - processed);
+                return true;
+        }
+        cpu.setRegister("ECX", 0);
+        return true;
+    }
 
-    private boolean isNumeric(String str) {
+    private int mismatchedElements(int esi, int edi, int count, int size) {
+        long length = (long) count * size;
+        for (long done = 0; done < length; done += BLOCK) {
+            int index = cpu.mismatchMemory(esi + (int) done, edi + (int) done, (int) Math.min(BLOCK, length - done));
+            if (index >= 0) {
+                return (int) ((done + index) / size) + 1;
+            }
+        }
+        return count;
+    }
+
+    private int scannedElements(String kind, int size, int count, int delta, boolean untilNotEqual) {
+        int esi = cpu.getRegister("ESI");
+        int edi = cpu.getRegister("EDI");
+        int accumulator = cpu.getRegister(accumulatorFor(size));
+        for (int i = 0; i < count; i++) {
+            int first = kind.equals("CMPS") ? cpu.getMemory(esi + i * delta, size) : accumulator;
+            boolean equal = first == cpu.getMemory(edi + i * delta, size);
+            if (equal != untilNotEqual) {
+                return i + 1;
+            }
+        }
+        return count;
+    }
+
+    // One iteration of a string instruction, advancing ESI/EDI according to DF; CMPS/SCAS set
+    // the flags in mask
+    private void stringStep(String kind, int size, int mask) {
+        int delta = cpu.getFlag("DF") ? -size : size;
+        int esi = cpu.getRegister("ESI");
+        int edi = cpu.getRegister("EDI");
+        switch (kind) {
+            case "MOVS":
+                cpu.setMemory(edi, cpu.getMemory(esi, size), size);
+                cpu.setRegister("ESI", esi + delta);
+                cpu.setRegister("EDI", edi + delta);
+                break;
+            case "STOS":
+                cpu.setMemory(edi, cpu.getRegister(accumulatorFor(size)), size);
+                cpu.setRegister("EDI", edi + delta);
+                break;
+            case "LODS":
+                cpu.setRegister(accumulatorFor(size), cpu.getMemory(esi, size));
+                cpu.setRegister("ESI", esi + delta);
+                break;
+            case "CMPS": {
+                int value1 = cpu.getMemory(esi, size);
+                int value2 = cpu.getMemory(edi, size);
+                cpu.updateFlags(value1 - value2, value2, value1, false, mask); // Same flags as CMP
+                cpu.setRegister("ESI", esi + delta);
+                cpu.setRegister("EDI", edi + delta);
+                break;
+            }
+            case "SCAS": {
+                int value1 = cpu.getRegister(accumulatorFor(size));
+                int value2 = cpu.getMemory(edi, size);
+                cpu.updateFlags(value1 - value2, value2, value1, false, mask);
+                cpu.setRegister("EDI", edi + delta);
+                break;
+            }
+        }
+    }
+
+    // Packed instructions: the SSE form is "OP dest, src" and leaves the upper YMM lanes alone,
+    // the V-prefixed form is "OP dest, src1, src2" and zeroes them when dest is an XMM register
+    private void handlePacked(String[] parts, String opcode) throws Exception {
+        boolean vex = opcode.startsWith("V");
+        int operands = vex ? 3 : 2;
+        String dest = parts[1].toUpperCase();
+        String first = vex ? parts[2].toUpperCase() : dest;
+        int lanes = CPU.getVectorLanes(dest);
+        int[] a = cpu.getVectorRegister(first);
+        int[] b = getPackedSource(parts[operands].toUpperCase(), lanes);
+        int[] result = cpu.getVectorRegister(dest);
+        PackedOps ops = PackedOps.HOST;
+        switch (vex ? opcode.substring(1) : opcode) {
+            case "PADDD":
+                ops.add(a, b, result, lanes);
+                break;
+            case "PSUBD":
+                ops.sub(a, b, result, lanes);
+                break;
+            case "PMULLD":
+                ops.mul(a, b, result, lanes);
+                break;
+            case "PAND":
+                ops.and(a, b, result, lanes);
+                break;
+            case "POR":
+                ops.or(a, b, result, lanes);
+                break;
+            case "PXOR":
+                ops.xor(a, b, result, lanes);
+                break;
+            case "PCMPEQD":
+                ops.compareEqual(a, b, result, lanes);
+                break;
+            case "PCMPGTD":
+                ops.compareGreater(a, b, result, lanes);
+                break;
+        }
+        if (vex && lanes == 4) {
+            Arrays.fill(result, 4, 8, 0);
+        }
+    }
+
+    // A vector register of the same width or memory, the Verifier made sure it is one of those
+    private int[] getPackedSource(String operand, int lanes) throws Exception {
+        if (CPU.isVectorRegister(operand)) {
+            return cpu.getVectorRegister(operand);
+        }
+        cpu.loadVector(address(memoryOperand(operand)), vectorScratch, lanes);
+        return vectorScratch;
+    }
+
+    private void handleMovdqu(String[] parts, String opcode) throws Exception {
+        String dest = parts[1].toUpperCase();
+        String src = parts[2].toUpperCase();
+        if (isIndirect(dest)) {
+            cpu.storeVector(address(memoryOperand(dest)), cpu.getVectorRegister(src), CPU.getVectorLanes(src));
+        } else {
+            int lanes = CPU.getVectorLanes(dest);
+            int[] value = getPackedSource(src, lanes);
+            System.arraycopy(value, 0, cpu.getVectorRegister(dest), 0, lanes);
+            if (opcode.startsWith("V") && lanes == 4) {
+                Arrays.fill(cpu.getVectorRegister(dest), 4, 8, 0);
+            }
+        }
+    }
+
+    private void handleMovd(String[] parts, String opcode) throws Exception {
+        String dest = parts[1].toUpperCase();
+        String src = parts[2].toUpperCase();
+        if (CPU.isVectorRegister(dest)) {
+            int[] lanes = cpu.getVectorRegister(dest);
+            lanes[0] = getValue(src);
+            Arrays.fill(lanes, 1, opcode.startsWith("V") ? 8 : 4, 0);
+        } else {
+            int value = cpu.getVectorRegister(src)[0];
+            if (isIndirect(dest)) {
+                cpu.setMemory(address(memoryOperand(dest)), value);
+            } else {
+                setValue(dest, value);
+            }
+        }
+    }
+
+    private void handlePextrd(String[] parts, String opcode) throws Exception {
+        String dest = parts[1].toUpperCase();
+        String src = parts[2].toUpperCase();
+        cpu.setRegister(dest, cpu.getVectorRegister(src)[getValue(parts[3]) & 3]);
+    }
+
+    private void handleBroadcast(String[] parts) throws Exception {
+        String dest = parts[1].toUpperCase();
+        String src = parts[2].toUpperCase();
+        int value;
+        if (CPU.isVectorRegister(src)) {
+            value = cpu.getVectorRegister(src)[0];
+        } else if (isIndirect(src)) {
+            value = cpu.getMemory(address(memoryOperand(src)));
+        } else {
+            value = getValue(src);
+        }
+        int[] lanes = cpu.getVectorRegister(dest);
+        Arrays.fill(lanes, 0, CPU.getVectorLanes(dest), value);
+        Arrays.fill(lanes, CPU.getVectorLanes(dest), 8, 0);
+    }
+
+    private String accumulatorFor(int size) {
+        return size == 1 ? "AL" : size == 2 ? "AX" : "EAX";
+    }
+
+    static boolean isNumeric(String str) {
         if (str.startsWith("0x")) {
             // Check if it's a valid hexadecimal number
             try {
@@ -967,15 +1504,10 @@ private void handleDec(String[] parts) throws Exception {
     }
 
 
-    private int getRegisterSize(String reg) {
-    if (reg.equals("AX") || reg.equals("BX") || reg.equals("CX") || reg.equals("DX")) {
-        return 16;
-    } else if (reg.equals("AL") || reg.equals("BL") || reg.equals("CL") || reg.equals("DL")) {
-        return 8;
-    } else {
-        return 32;
+    // Bits the register holds, from CPU's own widths; 32 for anything that is not a register
+    static int getRegisterSize(String reg) {
+        return CPU.isRegister(reg) ? CPU.getRegisterSize(reg) * 8 : 32;
     }
-}
 
 
     private void setValue(String operand, int value) {
@@ -990,21 +1522,31 @@ private void handleDec(String[] parts) throws Exception {
 
 
     private boolean isIndirect(String operand) {
-        return operand.startsWith("[") && operand.endsWith("]");
+        return MemoryOperand.is(operand);
 }
 
-    private int getIndirectAddress(String operand) {
-        operand = operand.substring(1, operand.length() - 1).toUpperCase(); // Remove the brackets
-        String[] parts = operand.split("\\+");
-        if (parts.length == 1) {
-            // The operand is in the form [REGISTER]
-            return cpu.getRegister(parts[0]);
-        } else {
-            // The operand is in the form [REGISTER + OFFSET]
-            String register = parts[0];
-            int offset = Integer.parseInt(parts[1]);
-            return cpu.getRegister(register) + offset;
+    // Decoded when the program was loaded, only a single instruction run on its own decodes here
+    private MemoryOperand memoryOperand(String operand) {
+        MemoryOperand memory = memoryOperands.get(operand);
+        return memory != null ? memory : MemoryOperand.decode(operand);
+    }
+
+    private int address(MemoryOperand memory) {
+        return cpu.getRegister(memory.base) + memory.offset;
+    }
+
+    // Bits a MOVSX/MOVZX source holds, a memory one has BYTE or WORD PTR
+    private int sourceSize(String operand) {
+        return isIndirect(operand) ? memoryOperand(operand).size * 8 : getRegisterSize(operand);
+    }
+
+    // Bytes a memory operand accesses: its PTR size, else the size of the register on the other
+    // side, so MOV [EBX], AL stores one byte, else 4
+    private static int accessSize(MemoryOperand memory, String other) {
+        if (memory.size != 0) {
+            return memory.size;
         }
+        return CPU.isRegister(other) ? getRegisterSize(other) / 8 : 4;
     }
 }
 
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Whole-program performance runs over the corpus in src/bench: a sieve, recursive Fibonacci
+// through CALL/RET, bubble and insertion sort over .DATA arrays (copied into memory first,
+// variables cannot be indexed), fill/copy/sum loops plus REP MOVSD, and flag-heavy branching.
+// Each program is run on one warm JasmVM, first for the warm-up time and then for the measured
+// time, and gets instructions per second, bytes allocated per instruction and the peak heap.
+// Loop idioms are off, they count the iterations they skip as retired and would make the bulk
+// loops look faster than the interpreter runs. The peak heap is the most heap in use seen after
+// any measured run.
+// Throughput is checked against a baseline file of "name instructionsPerSecond" lines, a
+// program regresses when it runs more than threshold (a fraction) slower than its baseline.
+class Benchmark {
+    static class Result {
+        final String name;
+        final long instructions;
+        final double instructionsPerSecond;
+        final double bytesPerInstruction; // -1 when the JVM cannot count allocations
+        final long peakHeap;
+
+        Result(String name, long instructions, double instructionsPerSecond, double bytesPerInstruction, long peakHeap) {
+            this.name = name;
+            this.instructions = instructions;
+            this.instructionsPerSecond = instructionsPerSecond;
+            this.bytesPerInstruction = bytesPerInstruction;
+            this.peakHeap = peakHeap;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %14.0f instr/s %10.2f B/instr %8d KB peak heap", name, instructionsPerSecond,
+                    bytesPerInstruction, peakHeap / 1024);
+        }
+    }
+
+    private static final int MEMORY_SIZE = 65536; // The sieve uses 32 KB, the copies 12 KB
+
+    long warmupMillis = 2000;
+    long measureMillis = 3000;
+    double threshold = 0.10;
+
+    // Runs every .asm file in the directory, in name order
+    List<Result> runAll(Path directory) throws Exception {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(file -> file.toString().endsWith(".asm")).sorted().forEach(files::add);
+        }
+        List<Result> results = new ArrayList<>();
+        for (Path file : files) {
+            Program program = Program.parse(new String(Files.readAllBytes(file)));
+            program.name = file.getFileName().toString().replaceFirst("\\.asm$", "");
+            results.add(run(program));
+        }
+        return results;
+    }
+
+    Result run(Program program) throws Exception {
+        JasmVM vm = new JasmVM(MEMORY_SIZE);
+        vm.assembler().maxIterations = Integer.MAX_VALUE;
+        vm.assembler().loopIdioms = false;
+        ExecutionResult first = vm.run(program);
+        if (first.exitReason != ExecutionResult.ExitReason.COMPLETED) {
+            throw new Exception(program.name + " did not complete: " + first.exitReason + " at line " + first.errorLine
+                    + ": " + first.errorMessage);
+        }
+        long end = System.nanoTime() + warmupMillis * 1_000_000;
+        while (System.nanoTime() < end) {
+            vm.run(program);
+        }
+
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long peakHeap = runtime.totalMemory() - runtime.freeMemory();
+        long allocatedBefore = allocatedBytes();
+        long instructions = 0;
+        long start = System.nanoTime();
+        end = start + measureMillis * 1_000_000;
+        long now;
+        do {
+            instructions += vm.run(program).instructionsRetired;
+            peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+            now = System.nanoTime();
+        } while (now < end);
+        long allocated = allocatedBytes() - allocatedBefore;
+        double seconds = (now - start) / 1e9;
+        return new Result(program.name, instructions, instructions / seconds,
+                allocatedBefore < 0 ? -1 : (double) allocated / instructions, peakHeap);
+    }
+
+    // Bytes this thread has allocated so far, -1 when the JVM does not keep count
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+                return counting.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return -1;
+    }
+
+    static Map<String, Double> readBaseline(Path file) throws IOException {
+        Map<String, Double> baseline = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            baseline.put(fields[0], Double.parseDouble(fields[1]));
+        }
+        return baseline;
+    }
+
+    static void writeBaseline(Path file, List<Result> results) throws IOException {
+        StringBuilder sb = new StringBuilder("# JASM benchmark baseline: program and instructions per second\n");
+        for (Result result : results) {
+            sb.append(result.name).append(' ').append(Math.round(result.instructionsPerSecond)).append('\n');
+        }
+        Files.write(file, sb.toString().getBytes());
+    }
+
+    // Describes every program that got slower than the threshold allows, empty when none did.
+    // Programs without a baseline entry are not checked.
+    List<String> regressions(List<Result> results, Map<String, Double> baseline) {
+        List<String> regressions = new ArrayList<>();
+        for (Result result : results) {
+            Double expected = baseline.get(result.name);
+            if (expected != null && result.instructionsPerSecond < expected * (1 - threshold)) {
+                regressions.add(String.format("%s: %.0f instr/s, baseline %.0f (%.1f%% slower)", result.name,
+                        result.instructionsPerSecond, expected, 100 * (1 - result.instructionsPerSecond / expected)));
+            }
+        }
+        return regressions;
+    }
+}
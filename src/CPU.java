@@ -1,23 +1,46 @@
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
 import java.util.Arrays;
 
 class CPU {
+    // Flag bits, at their EFLAGS positions, used to say which flags an instruction has to compute
+    static final int CF = 1;
+    static final int PF = 1 << 2;
+    static final int AF = 1 << 4;
+    static final int ZF = 1 << 6;
+    static final int SF = 1 << 7;
+    static final int DF = 1 << 10;
+    static final int OF = 1 << 11;
+    static final int ALL_FLAGS = CF | PF | AF | ZF | SF | DF | OF;
+
     private byte[] registers;
-    Map<String, Boolean> flags;
-    Stack<Integer> stack;
-    Stack<Integer> returnAddressStack = new Stack<>();
-    byte[] memory;
+    int flags; // One bit per flag, see the constants above
+    IntStack stack;
+    IntStack returnAddressStack = new IntStack();
+    PagedMemory memory;
+    static final long ADDRESS_SPACE = 1L << 32; // Memory size that makes every 32-bit address valid
+    static final int PAGE_SIZE = PagedMemory.PAGE_SIZE; // What dirtyPages counts in
+    int[][] vectorRegisters; // YMM0-YMM7 with 8 DWORD lanes each, XMMn is the low 4 lanes of YMMn
+    ExecutionListener listener; // Only set while the assembler runs its hooked loop
+    static final String[] GENERAL_REGISTERS = {"EAX", "EBX", "ECX", "EDX", "ESI", "EDI", "EBP", "ESP"};
+    private static final int[] GENERAL_OFFSETS = new int[GENERAL_REGISTERS.length];
 
+    static {
+        for (int i = 0; i < GENERAL_REGISTERS.length; i++) {
+            GENERAL_OFFSETS[i] = getRegisterIndex(GENERAL_REGISTERS[i]);
+        }
+    }
 
     public CPU() {
+        this(1024); // 1 KB of memory for our simple CPU
+    }
+
+    // Up to ADDRESS_SPACE, pages are only allocated when a program writes them
+    public CPU(long memorySize) {
         registers = new byte[32]; // 8 registers of 4 bytes each
-        flags = new HashMap<>();
-        stack = new Stack<>();
-        memory = new byte[1024]; // 1 KB of memory for our simple CPU
+        stack = new IntStack();
+        memory = new PagedMemory(memorySize);
+        vectorRegisters = new int[8][8];
 
         resetRegisters();
         resetFlags();
@@ -30,26 +53,127 @@ class CPU {
     }
 
     private void resetFlags() {
-        flags.put("CF", false);
-        flags.put("PF", false);
-        flags.put("AF", false);
-        flags.put("ZF", false);
-        flags.put("SF", false);
-        flags.put("OF", false);
+        flags = 0;
+    }
+
+    // Puts the CPU back to its power-on state without allocating, so it can be reused
+    public void reset() {
+        resetRegisters();
+        resetFlags();
+        stack.clear();
+        returnAddressStack.clear();
+        memory.reset();
+        for (int[] lanes : vectorRegisters) {
+            Arrays.fill(lanes, 0);
+        }
+    }
+
+    // Describes how this CPU differs from other, or returns null when they match. Only the flags
+    // in flagMask are compared, the rest may be stale when flag liveness is on.
+    String diff(CPU other, int flagMask) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : new String[]{"EAX", "EBX", "ECX", "EDX", "ESI", "EDI", "EBP", "ESP"}) {
+            if (getRegister(name) != other.getRegister(name)) {
+                sb.append(name).append(": ").append(getRegister(name)).append(" vs ").append(other.getRegister(name)).append('\n');
+            }
+        }
+        int flagDiff = (flags ^ other.flags) & flagMask;
+        if (flagDiff != 0) {
+            sb.append("Flags: ").append(flagsToString()).append(" vs ").append(other.flagsToString()).append('\n');
+        }
+        if (!stack.toString().equals(other.stack.toString())) {
+            sb.append("Stack: ").append(stack).append(" vs ").append(other.stack).append('\n');
+        }
+        if (!returnAddressStack.toString().equals(other.returnAddressStack.toString())) {
+            sb.append("Return addresses: ").append(returnAddressStack).append(" vs ").append(other.returnAddressStack).append('\n');
+        }
+        if (memory.size != other.memory.size) {
+            sb.append("Memory size: ").append(memory.size).append(" vs ").append(other.memory.size).append('\n');
+        } else {
+            long address = memory.firstDifference(other.memory);
+            if (address >= 0) {
+                sb.append("Memory at ").append(address).append(": ").append(memory.byteAt(address))
+                        .append(" vs ").append(other.memory.byteAt(address)).append('\n');
+            }
+        }
+        for (int i = 0; i < vectorRegisters.length; i++) {
+            if (!Arrays.equals(vectorRegisters[i], other.vectorRegisters[i])) {
+                sb.append("YMM").append(i).append(": ").append(Arrays.toString(vectorRegisters[i]))
+                        .append(" vs ").append(Arrays.toString(other.vectorRegisters[i])).append('\n');
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private void putFlag(int bit, boolean value) {
+        flags = withFlag(flags, bit, value);
+    }
+
+    static int withFlag(int flags, int bit, boolean value) {
+        return value ? flags | bit : flags & ~bit;
+    }
+
+    public String flagsToString() {
+        return "{CF=" + getFlag("CF") + ", PF=" + getFlag("PF") + ", AF=" + getFlag("AF") + ", ZF=" + getFlag("ZF")
+                + ", SF=" + getFlag("SF") + ", DF=" + getFlag("DF") + ", OF=" + getFlag("OF") + "}";
     }
 
     public void updateFlagsForAnd(int result) {
-        flags.put("ZF", result == 0);
-        flags.put("SF", result < 0);
-        flags.put("OF", false);
-        flags.put("CF", false);
+        updateFlagsForAnd(result, ALL_FLAGS);
     }
 
     public void updateFlagsForOrXor(int result) {
-        flags.put("ZF", result == 0);
-        flags.put("SF", result < 0);
-        flags.put("OF", false);
-        flags.put("CF", false);
+        updateFlagsForOrXor(result, ALL_FLAGS);
+    }
+
+    // The masked versions only compute the flags in live, see FlagLiveness
+    public void updateFlagsForAnd(int result, int live) {
+        updateLogicFlags(result, live);
+    }
+
+    public void updateFlagsForOrXor(int result, int live) {
+        updateLogicFlags(result, live);
+    }
+
+    private void updateLogicFlags(int result, int live) {
+        flags = logicFlags(flags, result, live);
+    }
+
+    static int logicFlags(int flags, int result, int live) {
+        if ((live & ZF) != 0) {
+            flags = withFlag(flags, ZF, result == 0);
+        }
+        if ((live & SF) != 0) {
+            flags = withFlag(flags, SF, result < 0);
+        }
+        if ((live & OF) != 0) {
+            flags = withFlag(flags, OF, false);
+        }
+        if ((live & CF) != 0) {
+            flags = withFlag(flags, CF, false);
+        }
+        return flags;
+    }
+
+    static int flagBit(String name) {
+        switch (name) {
+            case "CF":
+                return CF;
+            case "PF":
+                return PF;
+            case "AF":
+                return AF;
+            case "ZF":
+                return ZF;
+            case "SF":
+                return SF;
+            case "DF":
+                return DF;
+            case "OF":
+                return OF;
+            default:
+                return 0;
+        }
     }
 
 
@@ -68,6 +192,25 @@ class CPU {
         }
     }
 
+    // The eight 32-bit registers in GENERAL_REGISTERS order, without the name lookups
+    void copyRegisters(int[] into) {
+        for (int i = 0; i < GENERAL_OFFSETS.length; i++) {
+            int at = GENERAL_OFFSETS[i];
+            into[i] = (registers[at] & 0xFF) | (registers[at + 1] & 0xFF) << 8 | (registers[at + 2] & 0xFF) << 16
+                    | registers[at + 3] << 24;
+        }
+    }
+
+    void loadRegisters(int[] from) {
+        for (int i = 0; i < GENERAL_OFFSETS.length; i++) {
+            int at = GENERAL_OFFSETS[i];
+            registers[at] = (byte) from[i];
+            registers[at + 1] = (byte) (from[i] >> 8);
+            registers[at + 2] = (byte) (from[i] >> 16);
+            registers[at + 3] = (byte) (from[i] >> 24);
+        }
+    }
+
     public void setRegister(String name, int value) {
         int index = getRegisterIndex(name);
         int size = getRegisterSize(name);
@@ -82,7 +225,7 @@ class CPU {
         }
     }
 
-    private int getRegisterIndex(String name) {
+    private static int getRegisterIndex(String name) {
         switch (name) {
             case "EAX":
             case "AX":
@@ -121,7 +264,8 @@ class CPU {
         }
     }
 
-    private int getRegisterSize(String name) {
+    // Bytes the register holds
+    static int getRegisterSize(String name) {
         switch (name) {
             case "EAX":
             case "EBX":
@@ -156,14 +300,17 @@ class CPU {
     }
 
     public boolean getFlag(String name) {
-        return flags.getOrDefault(name, false);
+        return (flags & flagBit(name)) != 0;
     }
 
     public void setFlag(String name, boolean value) {
-        flags.put(name, value);
+        putFlag(flagBit(name), value);
     }
 
     public void push(int value) {
+        if (listener != null) {
+            listener.onStackAccess(stack.size(), true);
+        }
         stack.push(value);
         // Update ESP
         setRegister("ESP", getRegister("ESP") - 4);
@@ -173,44 +320,248 @@ class CPU {
         if (!stack.isEmpty()) {
             // Update ESP
             setRegister("ESP", getRegister("ESP") + 4);
+            if (listener != null) {
+                listener.onStackAccess(stack.size() - 1, false);
+            }
             return stack.pop();
         } else {
             throw new IllegalStateException("Stack underflow");
         }
     }
 
-    public boolean isRegister(String name) {
+    public static boolean isRegister(String name) {
     return Arrays.asList("EAX", "AX", "AH", "AL", "EBX", "BX", "BH", "BL", "ECX", "CX", "CH", "CL", "EDX", "DX", "DH", "DL", "ESI", "SI", "EDI", "DI", "EBP", "BP", "ESP", "SP").contains(name);
 }
 
     public void updateFlags(int result, int operand1, int operand2, boolean isAddition) {
-    flags.put("ZF", result == 0);
-    flags.put("SF", result < 0);
-    flags.put("PF", Integer.bitCount(result & 0xFF) % 2 == 0);
-    if (isAddition) {
-        flags.put("CF", (operand1 > 0 && operand2 > 0 && result < 0) || (operand1 < 0 && operand2 < 0 && result > 0));
-        flags.put("OF", ((operand1 ^ result) & (operand2 ^ result) & 0x80000000) != 0);
-        flags.put("AF", ((operand1 ^ operand2 ^ result) & 0x10) != 0);
-    } else {
-        flags.put("CF", operand1 < operand2);
-        flags.put("OF", ((operand1 ^ operand2) & (operand1 ^ result) & 0x80000000) != 0);
-        flags.put("AF", ((operand1 ^ operand2 ^ result) & 0x10) != 0);
+        updateFlags(result, operand1, operand2, isAddition, ALL_FLAGS);
     }
-}
-
-
 
+    public void updateFlags(int result, int operand1, int operand2, boolean isAddition, int live) {
+        flags = arithmeticFlags(flags, result, operand1, operand2, isAddition, live);
+    }
 
+    // The flags after an arithmetic instruction, shared with LaneEngine so both compute them the same
+    static int arithmeticFlags(int flags, int result, int operand1, int operand2, boolean isAddition, int live) {
+        if ((live & ZF) != 0) {
+            flags = withFlag(flags, ZF, result == 0);
+        }
+        if ((live & SF) != 0) {
+            flags = withFlag(flags, SF, result < 0);
+        }
+        if ((live & PF) != 0) {
+            flags = withFlag(flags, PF, Integer.bitCount(result & 0xFF) % 2 == 0);
+        }
+        if ((live & CF) != 0) {
+            if (isAddition) {
+                flags = withFlag(flags, CF, (operand1 > 0 && operand2 > 0 && result < 0) || (operand1 < 0 && operand2 < 0 && result > 0));
+            } else {
+                flags = withFlag(flags, CF, operand1 < operand2);
+            }
+        }
+        if ((live & OF) != 0) {
+            if (isAddition) {
+                flags = withFlag(flags, OF, ((operand1 ^ result) & (operand2 ^ result) & 0x80000000) != 0);
+            } else {
+                flags = withFlag(flags, OF, ((operand1 ^ operand2) & (operand1 ^ result) & 0x80000000) != 0);
+            }
+        }
+        if ((live & AF) != 0) {
+            flags = withFlag(flags, AF, ((operand1 ^ operand2 ^ result) & 0x10) != 0);
+        }
+        return flags;
+    }
 
     public int getMemory(int address) {
-        ByteBuffer buffer = ByteBuffer.wrap(memory, address, 4);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        return buffer.getInt();
+        if (listener != null) {
+            listener.onMemoryRead(address, 4);
+        }
+        return memory.getInt(address);
     }
 
     public void setMemory(int address, int value) {
-        ByteBuffer buffer = ByteBuffer.wrap(memory, address, 4);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putInt(value);
+        if (listener != null) {
+            listener.beforeMemoryWrite(address, 4);
+        }
+        memory.setInt(address, value);
+        if (listener != null) {
+            listener.onMemoryWrite(address, 4);
+        }
+    }
+
+    // Sized access for PTR operands and the string instructions: size is 1, 2 or 4 bytes, little
+    // endian, zero extended
+    public int getMemory(int address, int size) {
+        if (size == 4) {
+            return getMemory(address);
+        }
+        if (listener != null) {
+            listener.onMemoryRead(address, size);
+        }
+        return memory.get(address, size);
+    }
+
+    public void setMemory(int address, int value, int size) {
+        if (size == 4) {
+            setMemory(address, value);
+            return;
+        }
+        if (listener != null) {
+            listener.beforeMemoryWrite(address, size);
+        }
+        memory.set(address, value, size);
+        if (listener != null) {
+            listener.onMemoryWrite(address, size);
+        }
+    }
+
+    // QWORD PTR access
+    public long getMemoryLong(int address) {
+        if (listener != null) {
+            listener.onMemoryRead(address, 8);
+        }
+        return memory.getLong(address);
+    }
+
+    public void setMemoryLong(int address, long value) {
+        if (listener != null) {
+            listener.beforeMemoryWrite(address, 8);
+        }
+        memory.setLong(address, value);
+        if (listener != null) {
+            listener.onMemoryWrite(address, 8);
+        }
+    }
+
+    // Copies between guest memory and a host array for host I/O, callers check the range first
+    void readMemory(int address, byte[] bytes, int offset, int length) {
+        memory.read(address, bytes, offset, length);
+        if (listener != null) {
+            listener.onMemoryRead(address, length);
+        }
+    }
+
+    void writeMemory(int address, byte[] bytes, int offset, int length) {
+        if (listener != null) {
+            listener.beforeMemoryWrite(address, length);
+        }
+        memory.write(address, bytes, offset, length);
+        if (listener != null) {
+            listener.onMemoryWrite(address, length);
+        }
+    }
+
+    // Copies out without telling the listener or the watchpoints, for bytes about to be overwritten
+    void peekMemory(int address, byte[] bytes, int offset, int length) {
+        memory.peek(address, bytes, offset, length);
+    }
+
+    // Puts back bytes that writes overwrote when the Debugger steps backwards, see TimeTravel.
+    // Marks the pages dirty like a write, but nobody is told: the writes were reported already.
+    void restoreMemory(int address, byte[] bytes, int offset, int length) {
+        memory.restore(address, bytes, offset, length);
+    }
+
+    // Bytes of guest address space, up to ADDRESS_SPACE
+    public long memorySize() {
+        return memory.size;
+    }
+
+    // Addresses are unsigned, so with the whole address space the top half is usable too
+    public boolean isMemoryRange(int address, long length) {
+        return memory.isRange(address, length);
+    }
+
+    // Pages that have been given a frame, what the memory actually uses
+    public int allocatedPages() {
+        return memory.allocatedPages();
+    }
+
+    // Block operations for REP-prefixed string instructions, callers check the range first
+    public void copyMemory(int source, int destination, int length) {
+        if (listener != null) {
+            listener.beforeMemoryWrite(destination, length);
+        }
+        memory.copy(source, destination, length);
+        if (listener != null) {
+            listener.onMemoryRead(source, length);
+            listener.onMemoryWrite(destination, length);
+        }
+    }
+
+    public void fillMemory(int address, int length, int value, int size) {
+        if (listener != null) {
+            listener.beforeMemoryWrite(address, length);
+        }
+        memory.fill(address, length, value, size);
+        if (listener != null) {
+            listener.onMemoryWrite(address, length);
+        }
+    }
+
+    // Index of the first differing byte between the two ranges, or -1 if they are equal
+    public int mismatchMemory(int first, int second, int length) {
+        int mismatch = memory.mismatch(first, second, length);
+        int read = mismatch < 0 ? length : mismatch + 1;
+        memory.noteRead(first, read);
+        memory.noteRead(second, read);
+        if (listener != null) {
+            listener.onMemoryRead(first, read);
+            listener.onMemoryRead(second, read);
+        }
+        return mismatch;
+    }
+
+    // Calls handler for every READ, WRITE or CHANGE (a bitmask of the Watchpoints kinds) of the
+    // range. Accesses by host I/O count too, pushes and pops do not touch memory.
+    public Watchpoints.Watchpoint watch(int address, int length, int kinds, Watchpoints.Handler handler) throws Exception {
+        if (length <= 0 || !isMemoryRange(address, length)) {
+            throw new Exception("Runtime error: Watch outside memory: " + address + ", length " + length);
+        }
+        return memory.watch(address, length, kinds, handler);
+    }
+
+    public void unwatch(Watchpoints.Watchpoint watchpoint) {
+        memory.unwatch(watchpoint);
+    }
+
+    // Pages written since the last reset or clearDirtyPages, as page indexes in ascending order.
+    // Page n covers addresses n * PAGE_SIZE up to PAGE_SIZE bytes on, so a snapshot or a diff
+    // only has to look at these.
+    public int[] dirtyPages() {
+        return memory.dirtyPages();
+    }
+
+    public boolean isPageDirty(int page) {
+        return memory.isPageDirty(page);
+    }
+
+    public void clearDirtyPages() {
+        memory.clearDirtyPages();
+    }
+
+    public static boolean isVectorRegister(String name) {
+        return name.length() == 4 && (name.startsWith("XMM") || name.startsWith("YMM"))
+                && name.charAt(3) >= '0' && name.charAt(3) <= '7';
+    }
+
+    public int[] getVectorRegister(String name) {
+        return vectorRegisters[name.charAt(3) - '0'];
+    }
+
+    public static int getVectorLanes(String name) {
+        return name.charAt(0) == 'X' ? 4 : 8;
+    }
+
+    public void loadVector(int address, int[] lanes, int count) {
+        for (int i = 0; i < count; i++) {
+            lanes[i] = getMemory(address + i * 4);
+        }
+    }
+
+    public void storeVector(int address, int[] lanes, int count) {
+        for (int i = 0; i < count; i++) {
+            setMemory(address + i * 4, lanes[i]);
+        }
     }
 }
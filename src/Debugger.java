@@ -0,0 +1,213 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// Breakpoints, single-step, register and memory watches for an IDE. The program thread blocks
+// inside the hooks while paused, the IDE thread calls resume() or step() to let it continue.
+// With recordHistory on, a paused or ended program can also be run backwards, see TimeTravel;
+// only a paused one can run forward again, after the end the rewound state is just inspected.
+class Debugger implements ExecutionListener {
+    private final Assembler assembler;
+    private final BiConsumer<Integer, String> onStop; // Gets the line and the reason for every stop
+    private final Set<Integer> breakpoints = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> watches = new ConcurrentHashMap<>();
+    private final StringBuilder memoryHits = new StringBuilder(); // Watchpoint hits of the running instruction
+    private volatile boolean stepping;
+    private boolean paused;
+    private volatile TimeTravel history; // Only while recording
+    private int resumeLine = -1; // A breakpoint not to stop at again, the program went back to it
+
+    public Debugger(Assembler assembler, BiConsumer<Integer, String> onStop) {
+        this.assembler = assembler;
+        this.onStop = onStop;
+    }
+
+    public void attach() {
+        assembler.setBreakpoints(breakpoints);
+        assembler.setListener(this);
+    }
+
+    public void detach() {
+        assembler.setListener(null);
+        TimeTravel recorded = history;
+        if (recorded != null) {
+            recorded.clear(); // It would have a gap
+        }
+        resume();
+    }
+
+    public void addBreakpoint(int line) {
+        breakpoints.add(line);
+        assembler.setBreakpoints(breakpoints);
+    }
+
+    public void removeBreakpoint(int line) {
+        breakpoints.remove(line);
+        assembler.setBreakpoints(breakpoints);
+    }
+
+    public void watchRegister(String name) {
+        name = name.toUpperCase();
+        watches.put(name, assembler.cpu.getRegister(name));
+    }
+
+    public void unwatchRegister(String name) {
+        watches.remove(name.toUpperCase());
+    }
+
+    // Stops after every instruction that accesses the range in one of the kinds, a bitmask of
+    // Watchpoints.READ, WRITE and CHANGE. Call it before the run or while paused.
+    public Watchpoints.Watchpoint watchMemory(int address, int length, int kinds) throws Exception {
+        return assembler.cpu.watch(address, length, kinds, (watchpoint, kind, start, count) -> {
+            memoryHits.append(memoryHits.length() == 0 ? "" : ", ")
+                    .append(kind == Watchpoints.READ ? "read " : kind == Watchpoints.WRITE ? "write " : "change ")
+                    .append(start).append("..").append(start + count - 1);
+        });
+    }
+
+    public void unwatchMemory(Watchpoints.Watchpoint watchpoint) {
+        assembler.cpu.unwatch(watchpoint);
+    }
+
+    public void recordHistory() {
+        recordHistory(TimeTravel.DEFAULT_INTERVAL, TimeTravel.DEFAULT_WINDOW);
+    }
+
+    // Keeps undo entries for the last instructions, about windowBytes of them, with a checkpoint
+    // every checkpointInterval instructions. Call it before the run or while paused; the program
+    // runs somewhat slower while it records.
+    public void recordHistory(int checkpointInterval, long windowBytes) {
+        history = new TimeTravel(assembler, checkpointInterval, windowBytes);
+    }
+
+    public void stopRecording() {
+        history = null;
+    }
+
+    // Goes back one instruction, to just before it ran. Call it while paused or after the run
+    // ended; the stop goes to onStop on the calling thread. While paused, resume() or step() run
+    // forward from there; after the end they do nothing, the registers and memory are left as
+    // they were before that instruction for inspection. False when there is no history left.
+    public synchronized boolean reverseStep() {
+        TimeTravel recorded = history;
+        return rewound(recorded == null ? -1 : recorded.stepBack(), "Reverse step");
+    }
+
+    // Goes back to the last time a breakpoint line was about to run, or as far as the history goes
+    public synchronized boolean reverseContinue() {
+        TimeTravel recorded = history;
+        int line = recorded == null ? -1 : recorded.backTo(breakpoints);
+        return rewound(line, breakpoints.contains(line) ? "Reverse breakpoint" : "Start of history");
+    }
+
+    // The instruction that last wrote the byte at address, null when the history has no write of it
+    public synchronized TimeTravel.Write lastWrite(int address) {
+        TimeTravel recorded = history;
+        return recorded == null ? null : recorded.lastWrite(address);
+    }
+
+    private boolean rewound(int line, String reason) {
+        if (line < 0) {
+            return false;
+        }
+        assembler.rewind(line);
+        resumeLine = line;
+        for (Map.Entry<String, Integer> watch : watches.entrySet()) {
+            watch.setValue(assembler.cpu.getRegister(watch.getKey()));
+        }
+        memoryHits.setLength(0);
+        onStop.accept(line, reason);
+        return true;
+    }
+
+    // Stops after the instruction that is running now
+    public void pause() {
+        stepping = true;
+    }
+
+    public synchronized void resume() {
+        stepping = false;
+        paused = false;
+        notifyAll();
+    }
+
+    public synchronized void step() {
+        stepping = true;
+        paused = false;
+        notifyAll();
+    }
+
+    @Override
+    public void onBreakpoint(int line) {
+        if (line == resumeLine) {
+            resumeLine = -1;
+            return;
+        }
+        stop(line, "Breakpoint");
+    }
+
+    @Override
+    public void onInstructionStart(int line) {
+        resumeLine = -1;
+        TimeTravel recorded = history;
+        if (recorded != null) {
+            recorded.start(line);
+        }
+    }
+
+    @Override
+    public void beforeMemoryWrite(int address, int length) {
+        TimeTravel recorded = history;
+        if (recorded != null) {
+            recorded.memoryWrite(address, length);
+        }
+    }
+
+    @Override
+    public void onStackAccess(int depth, boolean push) {
+        TimeTravel recorded = history;
+        if (recorded != null) {
+            recorded.stackAccess(depth, push);
+        }
+    }
+
+    @Override
+    public void onInstructionRetired(int line, String instruction) {
+        TimeTravel recorded = history;
+        if (recorded != null) {
+            recorded.retired();
+        }
+        StringBuilder changed = new StringBuilder();
+        for (Map.Entry<String, Integer> watch : watches.entrySet()) {
+            int value = assembler.cpu.getRegister(watch.getKey());
+            if (value != watch.getValue()) {
+                changed.append(changed.length() == 0 ? "Watch " : ", ")
+                        .append(watch.getKey()).append(": ").append(watch.getValue()).append(" -> ").append(value);
+                watch.setValue(value);
+            }
+        }
+        if (memoryHits.length() > 0) {
+            changed.append(changed.length() == 0 ? "Watch " : ", ").append(memoryHits);
+            memoryHits.setLength(0);
+        }
+        if (changed.length() > 0) {
+            stop(line, changed.toString());
+        } else if (stepping) {
+            stop(line, "Step");
+        }
+    }
+
+    private synchronized void stop(int line, String reason) {
+        paused = true;
+        onStop.accept(line, reason);
+        while (paused) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                paused = false;
+            }
+        }
+    }
+}
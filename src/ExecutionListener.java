@@ -0,0 +1,42 @@
+// Hooks into a running Assembler, see Assembler.setListener. All methods are called on the
+// thread that runs the program, and only while a listener is attached.
+interface ExecutionListener {
+    // Called before the instruction on a breakpoint line runs, blocking here pauses the program
+    default void onBreakpoint(int line) {
+    }
+
+    // Called right before the instruction on line runs, after any breakpoint stop
+    default void onInstructionStart(int line) {
+    }
+
+    default void onInstructionRetired(int line, String instruction) {
+    }
+
+    default void onBranchTaken(int fromLine, int toLine) {
+    }
+
+    default void onCall(int fromLine, int targetLine) {
+    }
+
+    default void onReturn(int fromLine, int returnLine) {
+    }
+
+    // Called before the bytes are overwritten, so they can still be read. Writes outside memory
+    // are reported too, the write itself fails afterwards.
+    default void beforeMemoryWrite(int address, int length) {
+    }
+
+    default void onMemoryWrite(int address, int length) {
+    }
+
+    default void onMemoryRead(int address, int length) {
+    }
+
+    // A PUSH or POP, depth is the number of entries below the one pushed or popped
+    default void onStackAccess(int depth, boolean push) {
+    }
+
+    // After a conditional jump or LOOP ran, whether it jumped or not
+    default void onConditionalBranch(int line, boolean taken) {
+    }
+}
@@ -0,0 +1,31 @@
+// What a JasmVM run did: why it stopped, how much it ran and what it printed
+public class ExecutionResult {
+    public enum ExitReason {
+        COMPLETED, // Ran off the end of the program
+        ERROR, // An instruction failed, see errorLine and errorMessage
+        ITERATION_LIMIT // Hit Assembler.maxIterations, probably an endless loop
+    }
+
+    public final ExitReason exitReason;
+    public final long instructionsRetired;
+    public final long elapsedNanos;
+    public final String output;
+    public final int errorLine;
+    public final String errorMessage;
+
+    ExecutionResult(ExitReason exitReason, long instructionsRetired, long elapsedNanos, String output,
+                    int errorLine, String errorMessage) {
+        this.exitReason = exitReason;
+        this.instructionsRetired = instructionsRetired;
+        this.elapsedNanos = elapsedNanos;
+        this.output = output;
+        this.errorLine = errorLine;
+        this.errorMessage = errorMessage;
+    }
+
+    @Override
+    public String toString() {
+        return exitReason + " after " + instructionsRetired + " instructions in " + elapsedNanos / 1000 + " us"
+                + (errorMessage == null ? "" : " (line " + errorLine + ": " + errorMessage + ")");
+    }
+}
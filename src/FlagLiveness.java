@@ -0,0 +1,135 @@
+// Works out, for every line of a program, which flags can still be read after it runs.
+// Handlers only compute the flags in that mask, so a flag is skipped only when every path from
+// the instruction overwrites it before any Jcc, LOOPZ/LOOPNZ, PRINT_FLAG or string instruction
+// reads it. Flags are treated as observable when the program ends, after RET (the return
+// target is not known statically) and after jumps to unknown labels. When a runtime error
+// stops the program, flags that were dead at that point may not be up to date.
+class FlagLiveness {
+    static final int ARITHMETIC_FLAGS = CPU.CF | CPU.PF | CPU.AF | CPU.ZF | CPU.SF | CPU.OF;
+    static final int LOGIC_FLAGS = CPU.CF | CPU.ZF | CPU.SF | CPU.OF;
+
+    static int[] analyze(Program program) {
+        int size = program.size();
+        int[] liveIn = new int[size + 1];
+        int[] liveOut = new int[size];
+        liveIn[size] = CPU.ALL_FLAGS; // Falling off the end
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int line = size - 1; line >= 0; line--) {
+                String[] parts = program.parts[line];
+                int out = parts == null ? liveIn[line + 1] : liveAfter(program, parts, line, liveIn);
+                int in = parts == null ? out : (out & ~flagsWritten(parts)) | flagsRead(parts);
+                if (out != liveOut[line] || in != liveIn[line]) {
+                    liveOut[line] = out;
+                    liveIn[line] = in;
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    private static int liveAfter(Program program, String[] parts, int line, int[] liveIn) {
+        String opcode = parts[0];
+        if (opcode.equals("RET")) {
+            return CPU.ALL_FLAGS;
+        }
+        if (!isBranch(opcode)) {
+            return liveIn[line + 1];
+        }
+        Integer target = parts.length > 1 ? program.labels.get(parts[1]) : null;
+        if (target == null) {
+            return CPU.ALL_FLAGS;
+        }
+        if (opcode.equals("JMP") || opcode.equals("CALL")) {
+            return liveIn[target];
+        }
+        return liveIn[target] | liveIn[line + 1];
+    }
+
+    static boolean isBranch(String opcode) {
+        return opcode.equals("CALL") || (opcode.startsWith("J") && !opcode.equals("JRCXZ") && !opcode.equals("JOIN")) || opcode.startsWith("LOOP");
+    }
+
+    static int flagsRead(String[] parts) {
+        switch (parts[0]) {
+            case "JZ":
+            case "JE":
+            case "JNZ":
+            case "JNE":
+            case "LOOPZ":
+            case "LOOPE":
+            case "LOOPNZ":
+            case "LOOPNE":
+                return CPU.ZF;
+            case "JC":
+            case "JNC":
+            case "JB":
+            case "JAE":
+                return CPU.CF;
+            case "JA":
+            case "JBE":
+                return CPU.CF | CPU.ZF;
+            case "JO":
+            case "JNO":
+                return CPU.OF;
+            case "JS":
+            case "JNS":
+                return CPU.SF;
+            case "JP":
+            case "JNP":
+                return CPU.PF;
+            case "JG":
+            case "JLE":
+                return CPU.ZF | CPU.SF | CPU.OF;
+            case "JGE":
+            case "JL":
+                return CPU.SF | CPU.OF;
+            case "PRINT_FLAG":
+                return parts.length == 2 ? CPU.flagBit(parts[1].toUpperCase()) : 0;
+            case "REP":
+            case "REPE":
+            case "REPZ":
+            case "REPNE":
+            case "REPNZ":
+                // REPE/REPNE stop on the ZF of each compare, which the element loop always sets (see
+                // Assembler.handleStringOp), so only DF is read from before
+                return CPU.DF;
+            default:
+                return isStringOp(parts[0]) ? CPU.DF : 0;
+        }
+    }
+
+    // Flags the instruction always overwrites
+    static int flagsWritten(String[] parts) {
+        switch (parts[0]) {
+            case "ADD":
+            case "SUB":
+            case "NEG":
+            case "INC":
+            case "DEC":
+            case "CMP":
+            case "TEST":
+                return ARITHMETIC_FLAGS;
+            case "AND":
+            case "OR":
+            case "XOR":
+                return LOGIC_FLAGS;
+            case "STC":
+            case "CLC":
+                return CPU.CF;
+            case "STD":
+            case "CLD":
+                return CPU.DF;
+            default:
+                // A REP compare may run zero times, so only the unprefixed ones count
+                return parts[0].startsWith("CMPS") || parts[0].startsWith("SCAS") ? ARITHMETIC_FLAGS : 0;
+        }
+    }
+
+    private static boolean isStringOp(String opcode) {
+        return opcode.length() == 5 && "MOVS STOS LODS CMPS SCAS".contains(opcode.substring(0, 4))
+                && "BWD".indexOf(opcode.charAt(4)) >= 0;
+    }
+}
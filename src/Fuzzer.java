@@ -0,0 +1,228 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+// In-process coverage-guided fuzzer for JASM routines. An input is the starting value of the
+// eight 32-bit registers followed by the first bytes of memory (data definitions are written over
+// it as usual). Every thread has its own JasmVM, reset between cases instead of recreated, and its
+// own edge bitmap that the assembler fills on taken branches. Inputs that reach a new edge or a
+// new hit-count class for an edge go into the shared corpus; runs that end in an error or hit the
+// iteration limit are kept as crashes, one per exit reason, line and kind of error: the message
+// without its numbers, so a line that faults at many addresses is one crash. The first input
+// that gets there is kept as its reproducer.
+public class Fuzzer {
+    static final int MAP_SIZE = 1 << 12;
+    private static final String[] REGISTERS = {"EAX", "EBX", "ECX", "EDX", "ESI", "EDI", "EBP", "ESP"};
+    private static final int[] INTERESTING = {0, 1, -1, 2, 16, 32, 64, 100, 127, 128, 255, 256, 1000, 1023, 1024,
+            32767, 32768, 65535, 65536, Integer.MAX_VALUE, Integer.MIN_VALUE};
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+");
+
+    public static class Crash {
+        public final ExecutionResult result;
+        public final byte[] input;
+
+        Crash(ExecutionResult result, byte[] input) {
+            this.result = result;
+            this.input = input;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(result.exitReason).append(" at line ").append(result.errorLine).append(": ").append(result.errorMessage).append('\n');
+            for (int i = 0; i < REGISTERS.length; i++) {
+                sb.append(REGISTERS[i]).append('=').append(readInt(input, i * 4)).append(' ');
+            }
+            sb.append("\nMemory: ").append(Arrays.toString(Arrays.copyOfRange(input, REGISTERS.length * 4, input.length)));
+            return sb.toString();
+        }
+    }
+
+    private final Program program;
+    private final int inputSize;
+    private final byte[] seen = new byte[MAP_SIZE]; // Hit-count classes seen so far for every edge
+    private final List<byte[]> corpus = new CopyOnWriteArrayList<>();
+    private final Map<String, Crash> crashes = new ConcurrentHashMap<>();
+    private final LongAdder executions = new LongAdder();
+
+    public Fuzzer(Program program, int memoryBytes) {
+        this.program = program;
+        this.inputSize = REGISTERS.length * 4 + memoryBytes;
+        byte[] seed = new byte[inputSize];
+        JasmVM vm = newVM();
+        check(vm, seed, vm.run(program, cpu -> apply(cpu, seed)));
+        corpus.add(seed);
+    }
+
+    // Fuzzes on the given number of threads until the time is up
+    public void run(int threads, long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            long seed = System.nanoTime() + i;
+            workers[i] = new Thread(() -> work(deadline, new SplittableRandom(seed)), "fuzzer-" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private void work(long deadline, SplittableRandom random) {
+        JasmVM vm = newVM();
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 256; i++) {
+                byte[] input = mutate(corpus.get(random.nextInt(corpus.size())), random);
+                check(vm, input, vm.run(program, cpu -> apply(cpu, input)));
+            }
+            executions.add(256);
+        }
+    }
+
+    private JasmVM newVM() {
+        JasmVM vm = new JasmVM();
+        vm.assembler().coverage = new byte[MAP_SIZE];
+        return vm;
+    }
+
+    private void check(JasmVM vm, byte[] input, ExecutionResult result) {
+        byte[] trace = vm.assembler().coverage;
+        if (result.exitReason != ExecutionResult.ExitReason.COMPLETED) {
+            crashes.putIfAbsent(result.exitReason + ":" + result.errorLine + ":" + errorKind(result.errorMessage),
+                    new Crash(result, input));
+        }
+        if (hasNewCoverage(trace)) {
+            corpus.add(input);
+        }
+        Arrays.fill(trace, (byte) 0);
+    }
+
+    // The error message with addresses, counts and other numbers masked out
+    private static String errorKind(String message) {
+        return message == null ? "" : NUMBER.matcher(message).replaceAll("#");
+    }
+
+    private boolean hasNewCoverage(byte[] trace) {
+        // Cheap unlocked look first, most cases find nothing new
+        boolean found = false;
+        for (int i = 0; i < trace.length && !found; i++) {
+            if (trace[i] != 0) {
+                int bucket = bucket(trace[i]);
+                found = (seen[i] & bucket) != bucket;
+            }
+        }
+        if (!found) {
+            return false;
+        }
+        synchronized (seen) {
+            found = false;
+            for (int i = 0; i < trace.length; i++) {
+                if (trace[i] != 0) {
+                    int bucket = bucket(trace[i]);
+                    if ((seen[i] & bucket) != bucket) {
+                        seen[i] |= (byte) bucket;
+                        found = true;
+                    }
+                }
+            }
+            return found;
+        }
+    }
+
+    // One bit per class of hit counts: 1, 2, 3, 4-7, 8-15, 16-31, 32-127, 128-255
+    private static int bucket(byte count) {
+        int hits = count & 0xFF;
+        if (hits <= 2) {
+            return hits;
+        } else if (hits == 3) {
+            return 4;
+        } else if (hits < 8) {
+            return 8;
+        } else if (hits < 16) {
+            return 16;
+        } else if (hits < 32) {
+            return 32;
+        } else if (hits < 128) {
+            return 64;
+        }
+        return 128;
+    }
+
+    private byte[] mutate(byte[] parent, SplittableRandom random) {
+        byte[] child = parent.clone();
+        int count = 1 + random.nextInt(4);
+        for (int i = 0; i < count; i++) {
+            int at = random.nextInt(child.length);
+            switch (random.nextInt(6)) {
+                case 0:
+                    child[at] ^= (byte) (1 << random.nextInt(8));
+                    break;
+                case 1:
+                    child[at] = (byte) random.nextInt(256);
+                    break;
+                case 2:
+                    // Registers are the likeliest to matter, so put the interesting values there
+                    writeInt(child, random.nextInt(REGISTERS.length) * 4, INTERESTING[random.nextInt(INTERESTING.length)]);
+                    break;
+                case 3:
+                    at = at & ~3;
+                    if (at + 4 <= child.length) {
+                        writeInt(child, at, readInt(child, at) + random.nextInt(-16, 17));
+                    }
+                    break;
+                case 4:
+                    child[at] = (byte) INTERESTING[random.nextInt(INTERESTING.length)];
+                    break;
+                default:
+                    // Splice in the tail of another corpus entry
+                    byte[] other = corpus.get(random.nextInt(corpus.size()));
+                    System.arraycopy(other, at, child, at, child.length - at);
+                    break;
+            }
+        }
+        return child;
+    }
+
+    private void apply(CPU cpu, byte[] input) {
+        for (int i = 0; i < REGISTERS.length; i++) {
+            cpu.setRegister(REGISTERS[i], readInt(input, i * 4));
+        }
+        int memoryBytes = input.length - REGISTERS.length * 4;
+        for (int i = 0; i < memoryBytes && cpu.isMemoryRange(i, 1); i++) {
+            cpu.setMemory(i, input[REGISTERS.length * 4 + i], 1);
+        }
+    }
+
+    // Runs one input again, for example a crash, on a fresh VM
+    public ExecutionResult replay(byte[] input) {
+        return new JasmVM().run(program, cpu -> apply(cpu, input));
+    }
+
+    private static int readInt(byte[] bytes, int at) {
+        return (bytes[at] & 0xFF) | (bytes[at + 1] & 0xFF) << 8 | (bytes[at + 2] & 0xFF) << 16 | bytes[at + 3] << 24;
+    }
+
+    private static void writeInt(byte[] bytes, int at, int value) {
+        bytes[at] = (byte) value;
+        bytes[at + 1] = (byte) (value >> 8);
+        bytes[at + 2] = (byte) (value >> 16);
+        bytes[at + 3] = (byte) (value >> 24);
+    }
+
+    public long executions() {
+        return executions.sum();
+    }
+
+    public int corpusSize() {
+        return corpus.size();
+    }
+
+    public List<Crash> crashes() {
+        return List.copyOf(crashes.values());
+    }
+}
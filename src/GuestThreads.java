@@ -0,0 +1,124 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Cooperative green threads for SPAWN/YIELD/JOIN. Every guest thread runs on the one CPU:
+// switching saves the general registers, flags, next line and both stacks of the running
+// thread and loads those of the next ready one, so no host thread is ever involved and a
+// switch is a handful of array copies. Threads only switch at YIELD, at a JOIN that has to
+// wait, and when a thread ends. Memory, variables and the vector registers are shared.
+class GuestThreads {
+    private static class Context {
+        final int id;
+        final int[] registers = new int[CPU.GENERAL_REGISTERS.length];
+        int flags;
+        int line;
+        IntStack stack;
+        IntStack returns;
+        boolean finished;
+        List<Context> joiners; // Threads blocked in JOIN on this one
+
+        Context(int id) {
+            this.id = id;
+        }
+    }
+
+    private final CPU cpu;
+    private final List<Context> all = new ArrayList<>();
+    private final ArrayDeque<Context> ready = new ArrayDeque<>();
+    private Context current;
+
+    GuestThreads(CPU cpu) {
+        this.cpu = cpu;
+        current = new Context(0); // The thread that was running before the first SPAWN
+        all.add(current);
+    }
+
+    boolean inSpawnedThread() {
+        return current.id != 0;
+    }
+
+    // The new thread starts at entry with a copy of the spawner's registers, clear flags and
+    // empty stacks. Returns its id.
+    int spawn(int entry) {
+        Context thread = new Context(all.size());
+        cpu.copyRegisters(thread.registers);
+        thread.line = entry;
+        thread.stack = new IntStack(4);
+        thread.returns = new IntStack(4);
+        all.add(thread);
+        ready.add(thread);
+        return thread.id;
+    }
+
+    // Puts the running thread at the back of the ready queue, returns the line to continue at
+    int yield(int resume) {
+        if (ready.isEmpty()) {
+            return resume;
+        }
+        ready.add(current);
+        return switchTo(ready.poll(), resume);
+    }
+
+    int join(int id, int resume) throws Exception {
+        if (id < 0 || id >= all.size()) {
+            throw new Exception("Runtime error: No thread " + id);
+        }
+        if (id == current.id) {
+            throw new Exception("Runtime error: Thread " + id + " cannot join itself");
+        }
+        Context target = all.get(id);
+        if (target.finished) {
+            return resume;
+        }
+        if (target.joiners == null) {
+            target.joiners = new ArrayList<>();
+        }
+        target.joiners.add(current);
+        return switchTo(next(), resume);
+    }
+
+    // The running thread reached the end of the program. Returns the line the next ready thread
+    // continues at, or -1 when every thread has finished, the run ends only then.
+    int exit() throws Exception {
+        current.finished = true;
+        if (current.joiners != null) {
+            ready.addAll(current.joiners);
+            current.joiners = null;
+        }
+        if (ready.isEmpty()) {
+            for (Context thread : all) {
+                if (!thread.finished) {
+                    throw new Exception("Runtime error: Deadlock, every thread is waiting in JOIN");
+                }
+            }
+            if (current != all.get(0)) {
+                switchTo(all.get(0), -1); // Leave the CPU as the first thread finished it
+            }
+            return -1;
+        }
+        return switchTo(ready.poll(), -1);
+    }
+
+    private Context next() throws Exception {
+        Context thread = ready.poll();
+        if (thread == null) {
+            throw new Exception("Runtime error: Deadlock, every thread is waiting in JOIN");
+        }
+        return thread;
+    }
+
+    private int switchTo(Context thread, int resume) {
+        cpu.copyRegisters(current.registers);
+        current.flags = cpu.flags;
+        current.line = resume;
+        current.stack = cpu.stack;
+        current.returns = cpu.returnAddressStack;
+        current = thread;
+        cpu.loadRegisters(thread.registers);
+        cpu.flags = thread.flags;
+        cpu.stack = thread.stack;
+        cpu.returnAddressStack = thread.returns;
+        return thread.line;
+    }
+}
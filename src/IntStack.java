@@ -0,0 +1,56 @@
+import java.util.Arrays;
+
+// Growable stack of ints for the CPU stacks, without the boxing and locking of java.util.Stack.
+// toString prints like a java.util.Stack so SHOW_STACK output stays the same.
+class IntStack {
+    private int[] values;
+    private int size;
+
+    public IntStack() {
+        this(16);
+    }
+
+    public IntStack(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    public void push(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    public int pop() {
+        return values[--size];
+    }
+
+    public int peek() {
+        return values[size - 1];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            sb.append(i == 0 ? "" : ", ").append(values[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+// Embedding API: one reusable machine that runs programs and reports an ExecutionResult.
+// Every run starts from reset(), which clears the CPU, memory and variables in place, so a VM
+// can be kept warm and reused (see VMPool). Not thread safe, use one VM per thread at a time.
+//
+// An idle VM with the default 1 KB of guest memory takes about 2 KB of heap: the 1 KB guest
+// memory, 256 bytes of vector registers, the two 16-entry stacks, a few empty maps and the
+// 256-byte capture buffer, which keeps its high-water mark between runs. The PrintStream over
+// the capture is only made by the first run that prints; it keeps an 8192-char BufferedWriter
+// (16 KB) for text output, so a VM that has printed takes about 19 KB. Programs are not owned
+// by the VM, share a parsed Program between VMs.
+public class JasmVM {
+    private final Assembler assembler;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+    private Metrics metrics; // Every run is recorded here when set
+
+    public JasmVM() {
+        this(1024);
+    }
+
+    public JasmVM(long memorySize) {
+        assembler = new Assembler(memorySize);
+        assembler.openOutput = () -> new PrintStream(output, true);
+    }
+
+    public ExecutionResult run(String code) {
+        return run(Program.parse(code));
+    }
+
+    public ExecutionResult run(Program program) {
+        return run(program, null);
+    }
+
+    // setup gets the freshly reset CPU, to put inputs in registers and memory before the run
+    public ExecutionResult run(Program program, Consumer<CPU> setup) {
+        reset();
+        if (setup != null) {
+            setup.accept(assembler.cpu);
+        }
+        long start = System.nanoTime();
+        assembler.runProgram(program);
+        ExecutionResult result = result(System.nanoTime() - start);
+        if (metrics != null) {
+            metrics.record(program.name, result);
+        }
+        return result;
+    }
+
+    // Builds the result of the run that just finished on this VM's assembler
+    ExecutionResult result(long elapsed) {
+        ExecutionResult.ExitReason reason = assembler.iterationLimitReached ? ExecutionResult.ExitReason.ITERATION_LIMIT
+                : assembler.errorMessage != null || assembler.errorLine >= 0 ? ExecutionResult.ExitReason.ERROR
+                : ExecutionResult.ExitReason.COMPLETED;
+        return new ExecutionResult(reason, assembler.iterationCount, elapsed, output.toString(),
+                assembler.errorLine, assembler.errorMessage);
+    }
+
+    public void reset() {
+        assembler.reset();
+        output.reset();
+    }
+
+    // What the program reads from fd 0, System.in until set
+    public void setInput(InputStream input) {
+        assembler.in = input;
+    }
+
+    // Confines the open syscall to files under root
+    public void setFileRoot(Path root) {
+        assembler.syscalls.root = root;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public StateMonitor monitor() {
+        return assembler.monitor();
+    }
+
+    public CPU cpu() {
+        return assembler.cpu;
+    }
+
+    String output() {
+        return output.toString();
+    }
+
+    Assembler assembler() {
+        return assembler;
+    }
+}
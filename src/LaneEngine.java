@@ -0,0 +1,500 @@
+import java.util.Arrays;
+
+// Runs one program over many lanes, each with its own starting registers, in lock step (SIMT).
+// Registers and flags are kept as one int[lanes] per register, and every decoded instruction is
+// applied to all lanes at that line in one tight loop, so dispatch is paid once per line instead
+// of once per lane. Lanes that branch differently split up: the lanes at the lowest line run
+// while the others wait, and they join again when the first group reaches the line they wait at.
+// Covers register-only code (MOV, arithmetic, logic, CMP/TEST, XCHG, jumps and loops with 32-bit
+// registers and decimal numbers); programs using anything else run lane by lane on a JasmVM.
+public class LaneEngine {
+    private static final String[] REGISTERS = {"EAX", "EBX", "ECX", "EDX", "ESI", "EDI", "EBP", "ESP"};
+    private static final int ECX = 2;
+
+    // Decoded operations
+    private static final int NOP = 0; // Directives, counted like the interpreter does
+    private static final int MOV = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int AND = 4;
+    private static final int OR = 5;
+    private static final int XOR = 6;
+    private static final int CMP = 7;
+    private static final int TEST = 8;
+    private static final int INC = 9;
+    private static final int DEC = 10;
+    private static final int NEG = 11;
+    private static final int XCHG = 12;
+    private static final int STC = 13;
+    private static final int CLC = 14;
+    private static final int JMP = 15; // Conditional jumps too, see condition
+    private static final int JCXZ = 16;
+    private static final int JECXZ = 17;
+    private static final int LOOP = 18;
+    private static final int LOOPZ = 19;
+    private static final int LOOPNZ = 20;
+
+    private static final byte RUNNING = 0;
+
+    private final Program program;
+    private final int lanes;
+    private final boolean supported;
+    private final int[] op;
+    private final int[] dest; // Register index
+    private final int[] src; // Register index, or -1 for the number in imm
+    private final int[] imm;
+    private final int[] target; // Jump target line, -1 when the label does not exist
+    private final String[] condition; // Conditional jump opcode, null for JMP
+
+    private final int[][] registers;
+    private final int[] flags;
+    private final int[] pc;
+    private final long[] retired;
+    private final ExecutionResult.ExitReason[] exitReasons;
+    private final int[] errorLines;
+    private final String[] errorMessages;
+    int maxIterations = 10000; // Per lane, same as Assembler.maxIterations
+
+    public LaneEngine(Program program, int lanes) {
+        this.program = program;
+        this.lanes = lanes;
+        int size = program.size();
+        op = new int[size];
+        dest = new int[size];
+        src = new int[size];
+        imm = new int[size];
+        target = new int[size];
+        condition = new String[size];
+        // A program the Verifier rejects goes to the JasmVMs, which report its errors
+        boolean decoded = program.data.length == 0 && program.problems().isEmpty();
+        for (int line = 0; line < size && decoded; line++) {
+            decoded = decode(line, program.parts[line]);
+        }
+        supported = decoded;
+        registers = new int[REGISTERS.length][lanes];
+        flags = new int[lanes];
+        pc = new int[lanes];
+        retired = new long[lanes];
+        exitReasons = new ExecutionResult.ExitReason[lanes];
+        errorLines = new int[lanes];
+        errorMessages = new String[lanes];
+    }
+
+    private boolean decode(int line, String[] parts) {
+        if (parts == null) {
+            op[line] = NOP;
+            return true;
+        }
+        String opcode = parts[0];
+        switch (opcode) {
+            case ".CODE":
+            case ".DATA":
+            case ".STACK":
+                op[line] = NOP;
+                return true;
+            case "STC":
+            case "CLC":
+                op[line] = opcode.equals("STC") ? STC : CLC;
+                return parts.length == 1;
+            case "MOV":
+            case "ADD":
+            case "SUB":
+            case "AND":
+            case "OR":
+            case "XOR":
+            case "CMP":
+            case "TEST":
+            case "XCHG":
+                op[line] = opcode.equals("MOV") ? MOV : opcode.equals("ADD") ? ADD : opcode.equals("SUB") ? SUB
+                        : opcode.equals("AND") ? AND : opcode.equals("OR") ? OR : opcode.equals("XOR") ? XOR
+                        : opcode.equals("CMP") ? CMP : opcode.equals("TEST") ? TEST : XCHG;
+                if (parts.length != 3 || (dest[line] = register(parts[1])) < 0) {
+                    return false;
+                }
+                src[line] = register(parts[2]);
+                if (src[line] < 0) {
+                    if (op[line] == XCHG || !isDecimal(parts[2])) {
+                        return false;
+                    }
+                    imm[line] = Integer.parseInt(parts[2]);
+                }
+                return true;
+            case "INC":
+            case "DEC":
+            case "NEG":
+                op[line] = opcode.equals("INC") ? INC : opcode.equals("DEC") ? DEC : NEG;
+                return parts.length == 2 && (dest[line] = register(parts[1])) >= 0;
+            case "LOOP":
+            case "LOOPZ":
+            case "LOOPE":
+            case "LOOPNZ":
+            case "LOOPNE":
+                op[line] = opcode.equals("LOOP") ? LOOP : opcode.equals("LOOPZ") || opcode.equals("LOOPE") ? LOOPZ : LOOPNZ;
+                return decodeTarget(line, parts);
+            case "JCXZ":
+            case "JECXZ":
+                op[line] = opcode.equals("JCXZ") ? JCXZ : JECXZ;
+                return decodeTarget(line, parts);
+            default:
+                if (!opcode.equals("JMP") && !isCondition(opcode)) {
+                    return false;
+                }
+                op[line] = JMP;
+                condition[line] = opcode.equals("JMP") ? null : opcode;
+                return decodeTarget(line, parts);
+        }
+    }
+
+    private boolean decodeTarget(int line, String[] parts) {
+        if (parts.length < 2) {
+            return false;
+        }
+        Integer line2 = program.labels.get(parts[1]);
+        target[line] = line2 == null ? -1 : line2;
+        return true;
+    }
+
+    private static int register(String operand) {
+        for (int i = 0; i < REGISTERS.length; i++) {
+            if (REGISTERS[i].equals(operand.toUpperCase())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isDecimal(String operand) {
+        try {
+            Integer.parseInt(operand);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isCondition(String opcode) {
+        switch (opcode) {
+            case "JZ": case "JE": case "JNZ": case "JNE": case "JG": case "JL": case "JGE": case "JLE":
+            case "JC": case "JB": case "JNC": case "JAE": case "JA": case "JBE": case "JO": case "JNO":
+            case "JS": case "JNS": case "JP": case "JNP":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Same conditions as the Jcc handlers of the Assembler
+    private static boolean taken(String condition, int flags) {
+        boolean cf = (flags & CPU.CF) != 0;
+        boolean zf = (flags & CPU.ZF) != 0;
+        boolean sf = (flags & CPU.SF) != 0;
+        boolean of = (flags & CPU.OF) != 0;
+        boolean pf = (flags & CPU.PF) != 0;
+        switch (condition) {
+            case "JZ": case "JE": return zf;
+            case "JNZ": case "JNE": return !zf;
+            case "JG": return !zf && sf == of;
+            case "JL": return sf != of;
+            case "JGE": return sf == of;
+            case "JLE": return zf || sf != of;
+            case "JC": case "JB": return cf;
+            case "JNC": case "JAE": return !cf;
+            case "JA": return !cf && !zf;
+            case "JBE": return cf || zf;
+            case "JO": return of;
+            case "JNO": return !of;
+            case "JS": return sf;
+            case "JNS": return !sf;
+            case "JP": return pf;
+            default: return !pf;
+        }
+    }
+
+    public boolean isVectorized() {
+        return supported;
+    }
+
+    public void setRegister(int lane, String name, int value) {
+        registers[index(name)][lane] = value;
+    }
+
+    public int getRegister(int lane, String name) {
+        return registers[index(name)][lane];
+    }
+
+    public boolean getFlag(int lane, String name) {
+        return (flags[lane] & CPU.flagBit(name)) != 0;
+    }
+
+    public ExecutionResult.ExitReason exitReason(int lane) {
+        return exitReasons[lane];
+    }
+
+    public int errorLine(int lane) {
+        return errorLines[lane];
+    }
+
+    public String errorMessage(int lane) {
+        return errorMessages[lane];
+    }
+
+    public long instructionsRetired(int lane) {
+        return retired[lane];
+    }
+
+    private static int index(String name) {
+        int index = register(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("Invalid register: " + name);
+        }
+        return index;
+    }
+
+    public void run() {
+        Arrays.fill(exitReasons, null);
+        Arrays.fill(errorLines, -1);
+        Arrays.fill(errorMessages, null);
+        Arrays.fill(retired, 0);
+        Arrays.fill(flags, 0);
+        if (!supported) {
+            runSeparately();
+            return;
+        }
+        int[] live = program.flagLiveness();
+        int[] active = new int[lanes];
+        Arrays.fill(pc, program.entry);
+        while (true) {
+            // The lanes at the lowest line go next, the others wait at their own line
+            int line = Integer.MAX_VALUE;
+            for (int lane = 0; lane < lanes; lane++) {
+                if (exitReasons[lane] == null && pc[lane] < line) {
+                    line = pc[lane];
+                }
+            }
+            if (line == Integer.MAX_VALUE) {
+                return;
+            }
+            int count = 0;
+            int waiting = Integer.MAX_VALUE;
+            for (int lane = 0; lane < lanes; lane++) {
+                if (exitReasons[lane] == null) {
+                    if (pc[lane] == line) {
+                        active[count++] = lane;
+                    } else if (pc[lane] < waiting) {
+                        waiting = pc[lane];
+                    }
+                }
+            }
+            runGroup(line, active, count, waiting, live);
+        }
+    }
+
+    // Runs the lanes in active from line until they branch or reach the waiting lanes, and leaves
+    // each lane's pc where it has to go on
+    private void runGroup(int line, int[] active, int count, int waiting, int[] live) {
+        int size = program.size();
+        while (count > 0) {
+            if (line < 0 || line >= size) {
+                for (int i = 0; i < count; i++) {
+                    exitReasons[active[i]] = ExecutionResult.ExitReason.COMPLETED;
+                }
+                return;
+            }
+            if (program.parts[line] == null) {
+                line++;
+            } else if (op[line] >= JMP) {
+                branch(line, active, count);
+                return;
+            } else {
+                execute(line, active, count, live[line]);
+                count = countRetired(line, active, count);
+                line++;
+            }
+            if (line == waiting) {
+                break;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            pc[active[i]] = line;
+        }
+    }
+
+    private void execute(int line, int[] active, int count, int live) {
+        int[] d = registers[dest[line]];
+        int[] s = src[line] < 0 ? null : registers[src[line]];
+        int value = imm[line];
+        switch (op[line]) {
+            case NOP:
+                break;
+            case MOV:
+                for (int i = 0; i < count; i++) {
+                    int lane = active[i];
+                    d[lane] = s == null ? value : s[lane];
+                }
+                break;
+            case ADD:
+            case SUB:
+            case CMP: {
+                boolean add = op[line] == ADD;
+                boolean store = op[line] != CMP;
+                for (int i = 0; i < count; i++) {
+                    int lane = active[i];
+                    int a = d[lane];
+                    int b = s == null ? value : s[lane];
+                    int result = add ? a + b : a - b;
+                    if (store) {
+                        d[lane] = result;
+                    }
+                    if (live != 0) {
+                        flags[lane] = CPU.arithmeticFlags(flags[lane], result, b, a, add, live);
+                    }
+                }
+                break;
+            }
+            case TEST:
+                for (int i = 0; i < count; i++) {
+                    int lane = active[i];
+                    int a = d[lane];
+                    int b = s == null ? value : s[lane];
+                    if (live != 0) {
+                        flags[lane] = CPU.arithmeticFlags(flags[lane], a & b, b, a, true, live);
+                    }
+                }
+                break;
+            case AND:
+            case OR:
+            case XOR: {
+                int kind = op[line];
+                for (int i = 0; i < count; i++) {
+                    int lane = active[i];
+                    int b = s == null ? value : s[lane];
+                    int result = kind == AND ? d[lane] & b : kind == OR ? d[lane] | b : d[lane] ^ b;
+                    d[lane] = result;
+                    if (live != 0) {
+                        flags[lane] = CPU.logicFlags(flags[lane], result, live);
+                    }
+                }
+                break;
+            }
+            case INC:
+            case DEC:
+            case NEG: {
+                int kind = op[line];
+                for (int i = 0; i < count; i++) {
+                    int lane = active[i];
+                    int a = d[lane];
+                    int result = kind == INC ? a + 1 : kind == DEC ? a - 1 : -a;
+                    d[lane] = result;
+                    if (live != 0) {
+                        flags[lane] = kind == NEG ? CPU.arithmeticFlags(flags[lane], result, 0, a, false, live)
+                                : CPU.arithmeticFlags(flags[lane], result, 1, a, kind == INC, live);
+                    }
+                }
+                break;
+            }
+            case XCHG:
+                for (int i = 0; i < count; i++) {
+                    int lane = active[i];
+                    int a = d[lane];
+                    d[lane] = s[lane];
+                    s[lane] = a;
+                }
+                break;
+            case STC:
+            case CLC:
+                for (int i = 0; i < count; i++) {
+                    int lane = active[i];
+                    flags[lane] = CPU.withFlag(flags[lane], CPU.CF, op[line] == STC);
+                }
+                break;
+        }
+    }
+
+    private void branch(int line, int[] active, int count) {
+        int[] ecx = registers[ECX];
+        for (int i = 0; i < count; i++) {
+            int lane = active[i];
+            boolean jump;
+            switch (op[line]) {
+                case JMP:
+                    jump = condition[line] == null || taken(condition[line], flags[lane]);
+                    break;
+                case JCXZ:
+                    jump = (ecx[lane] & 0xFFFF) == 0;
+                    break;
+                case JECXZ:
+                    jump = ecx[lane] == 0;
+                    break;
+                case LOOP:
+                    // Counts CX like the interpreter: the low 16 bits, tested before decrementing
+                    jump = (ecx[lane] & 0xFFFF) != 0;
+                    if (jump) {
+                        ecx[lane] = (ecx[lane] & 0xFFFF0000) | ((ecx[lane] - 1) & 0xFFFF);
+                    }
+                    break;
+                default:
+                    boolean zf = (flags[lane] & CPU.ZF) != 0;
+                    jump = ecx[lane] != 0 && (op[line] == LOOPZ) == zf;
+                    if (jump) {
+                        ecx[lane]--;
+                    }
+                    break;
+            }
+            if (jump && target[line] < 0) {
+                fail(lane, line, ExecutionResult.ExitReason.ERROR, "Label not found: " + program.parts[line][1]);
+                continue;
+            }
+            pc[lane] = jump ? target[line] : line + 1;
+            retire(lane, line);
+        }
+    }
+
+    // Counts the instruction for every lane and drops the lanes that went over the limit
+    private int countRetired(int line, int[] active, int count) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int lane = active[i];
+            if (retire(lane, line)) {
+                active[kept++] = lane;
+            }
+        }
+        return kept;
+    }
+
+    private boolean retire(int lane, int line) {
+        if (++retired[lane] > maxIterations) {
+            fail(lane, line, ExecutionResult.ExitReason.ITERATION_LIMIT, "Maximum iteration count exceeded, potential infinite loop detected.");
+            return false;
+        }
+        return true;
+    }
+
+    private void fail(int lane, int line, ExecutionResult.ExitReason reason, String message) {
+        exitReasons[lane] = reason;
+        errorLines[lane] = line;
+        errorMessages[lane] = message;
+    }
+
+    // Fallback for programs the lanes can not run: one reused VM, one lane after the other
+    private void runSeparately() {
+        JasmVM vm = new JasmVM();
+        vm.assembler().maxIterations = maxIterations;
+        for (int lane = 0; lane < lanes; lane++) {
+            int current = lane;
+            ExecutionResult result = vm.run(program, cpu -> {
+                for (int r = 0; r < REGISTERS.length; r++) {
+                    cpu.setRegister(REGISTERS[r], registers[r][current]);
+                }
+            });
+            CPU cpu = vm.cpu();
+            for (int r = 0; r < REGISTERS.length; r++) {
+                registers[r][lane] = cpu.getRegister(REGISTERS[r]);
+            }
+            flags[lane] = cpu.flags;
+            retired[lane] = result.instructionsRetired;
+            exitReasons[lane] = result.exitReason;
+            errorLines[lane] = result.errorLine;
+            errorMessages[lane] = result.errorMessage;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Combines object modules into one. The first module is the main program, the others are
+// libraries: they are laid out in front of it and execution starts at the main module, so
+// running off the end of main still ends the program. Labels are local to their module unless
+// declared PUBLIC; local ones are renamed to "module.label" so modules can reuse names.
+class Linker {
+    static ObjectModule link(List<ObjectModule> modules) throws Exception {
+        List<ObjectModule> order = new ArrayList<>(modules.subList(1, modules.size()));
+        order.add(modules.get(0));
+
+        // Pass 1: place the modules and collect the public labels
+        Map<String, Integer> publics = new HashMap<>();
+        Map<String, String> exportedBy = new HashMap<>();
+        Set<String> names = new HashSet<>();
+        int[] bases = new int[order.size()];
+        int size = 0;
+        for (int m = 0; m < order.size(); m++) {
+            ObjectModule module = order.get(m);
+            if (!names.add(module.name)) {
+                throw new Exception("Link error: Duplicate module name " + module.name);
+            }
+            bases[m] = size;
+            for (String label : module.program.publics) {
+                Integer line = module.program.labels.get(label);
+                if (line == null) {
+                    throw new Exception("Link error: PUBLIC " + label + " is not defined in module " + module.name);
+                }
+                if (exportedBy.containsKey(label)) {
+                    throw new Exception("Link error: " + label + " is PUBLIC in both " + exportedBy.get(label) + " and " + module.name);
+                }
+                publics.put(label, bases[m] + line);
+                exportedBy.put(label, module.name);
+            }
+            size += module.program.size();
+        }
+
+        // Pass 2: copy the code, move every line by its module's base and resolve the relocations
+        String[] lines = new String[size];
+        String[][] parts = new String[size][];
+        Map<String, Integer> labels = new HashMap<>(publics);
+        List<String[]> data = new ArrayList<>();
+        List<Integer> dataLines = new ArrayList<>();
+        Set<String> variables = new HashSet<>();
+        for (int m = 0; m < order.size(); m++) {
+            ObjectModule module = order.get(m);
+            Program program = module.program;
+            int base = bases[m];
+            System.arraycopy(program.lines, 0, lines, base, program.size());
+            System.arraycopy(program.parts, 0, parts, base, program.size());
+            for (Map.Entry<String, Integer> label : program.labels.entrySet()) {
+                if (!program.publics.contains(label.getKey())) {
+                    String local = module.name + "." + label.getKey();
+                    labels.put(local, base + label.getValue());
+                    lines[base + label.getValue()] = local + ":";
+                }
+            }
+            for (int[] relocation : module.relocations) {
+                String[] instruction = parts[base + relocation[0]];
+                String target = instruction[relocation[1]];
+                String resolved;
+                if (program.labels.containsKey(target)) {
+                    resolved = program.publics.contains(target) ? target : module.name + "." + target;
+                } else if (publics.containsKey(target)) {
+                    resolved = target;
+                } else if (program.externs.contains(target)) {
+                    throw new Exception("Link error: Unresolved symbol " + target + " in module " + module.name);
+                } else {
+                    continue; // Undefined here too, it fails at runtime only if it is reached
+                }
+                instruction = instruction.clone();
+                instruction[relocation[1]] = resolved;
+                parts[base + relocation[0]] = instruction;
+                lines[base + relocation[0]] = ObjectModule.format(instruction);
+            }
+            for (int i = 0; i < program.data.length; i++) {
+                if (!variables.add(program.data[i][0].toUpperCase())) {
+                    throw new Exception("Link error: Variable " + program.data[i][0] + " is defined twice, again in module " + module.name);
+                }
+                data.add(program.data[i]);
+                dataLines.add(base + program.dataLines[i]);
+            }
+        }
+
+        Program linked = new Program(lines, parts, labels, data.toArray(new String[0][]),
+                dataLines.stream().mapToInt(Integer::intValue).toArray());
+        linked.entry = bases[order.size() - 1] + modules.get(0).program.entry;
+        linked.publics = new HashSet<>(publics.keySet());
+        return new ObjectModule(modules.get(0).name, linked);
+    }
+
+    // Reads object files and links them, the first one being the main program
+    static Program load(List<Path> files) throws Exception {
+        List<ObjectModule> modules = new ArrayList<>();
+        for (Path file : files) {
+            try (InputStream in = Files.newInputStream(file)) {
+                modules.add(ObjectModule.read(in));
+            } catch (IOException e) {
+                throw new Exception("Error reading object file " + file + ": " + e.getMessage());
+            }
+        }
+        return link(modules).program;
+    }
+}
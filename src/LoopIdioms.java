@@ -0,0 +1,336 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Finds counted loops that only walk guest memory and runs them as bulk operations. Recognised
+// bodies, each ending in LOOP (CX), DEC ECX + JNZ/JNE, or LOOPZ/LOOPNZ for the search:
+//   fill    MOV [P], V                 step P
+//   copy    MOV R, [S]   MOV [D], R    step S   step D
+//   sum     MOV R, [P]   ADD A, R      step P
+//   search  MOV R, [P]   step P        CMP R, V            (LOOPZ/LOOPE or LOOPNZ/LOOPNE only)
+// where a step is ADD or SUB of a constant and every register is a 32-bit one other than ECX.
+// At the loop label all but the last iteration are done in one go and the counter and pointers
+// moved on; the last iteration is then interpreted, so registers and flags end up exactly as
+// the loop leaves them. Fewer iterations are skipped when the iteration limit or the end of
+// memory would be reached, the interpreter then stops at the same point it always did.
+class LoopIdioms {
+    enum Kind { FILL, COPY, SUM, SEARCH }
+
+    // Iterations done in one go at most, so the byte length of a fill or copy fits an int. The
+    // loop comes back to its label and skips the rest then.
+    static final int MAX_SKIP = 1 << 28;
+
+    static class Idiom {
+        Kind kind;
+        String counter; // LOOP, DEC, LOOPZ or LOOPNZ
+        String pointer; // P, or S for a copy
+        int stride;
+        String destination; // D of a copy
+        int destinationStride;
+        String value; // V, a register or a decimal constant
+        String accumulator; // A of a sum
+        int instructions; // Run per iteration, what the iteration limit counts
+    }
+
+    // Returns the idiom starting at each label line, null where there is none
+    static Idiom[] find(Program program) {
+        Idiom[] idioms = new Idiom[program.size()];
+        for (int line = 0; line < program.size(); line++) {
+            String[] parts = program.parts[line];
+            if (parts == null || parts.length != 2) {
+                continue;
+            }
+            String op = parts[0].toUpperCase();
+            String counter;
+            int end = line;
+            if (op.equals("LOOP")) {
+                counter = "LOOP";
+            } else if (op.equals("LOOPZ") || op.equals("LOOPE")) {
+                counter = "LOOPZ";
+            } else if (op.equals("LOOPNZ") || op.equals("LOOPNE")) {
+                counter = "LOOPNZ";
+            } else if ((op.equals("JNZ") || op.equals("JNE")) && isDecEcx(program, line)) {
+                counter = "DEC";
+                end = previous(program, line);
+            } else {
+                continue;
+            }
+            Integer head = program.labels.get(parts[1]);
+            if (head == null || head >= end || program.parts[head] != null) {
+                continue;
+            }
+            List<String[]> body = new ArrayList<>();
+            for (int i = head + 1; i < end; i++) {
+                if (program.parts[i] != null) {
+                    body.add(program.parts[i]);
+                }
+            }
+            Idiom idiom = match(body, counter);
+            if (idiom != null) {
+                idiom.instructions = body.size() + (counter.equals("DEC") ? 2 : 1);
+                if (idioms[head] == null) {
+                    idioms[head] = idiom;
+                }
+            }
+        }
+        return idioms;
+    }
+
+    private static boolean isDecEcx(Program program, int line) {
+        int before = previous(program, line);
+        if (before < 0) {
+            return false;
+        }
+        String[] parts = program.parts[before];
+        return parts.length == 2 && parts[0].equalsIgnoreCase("DEC") && parts[1].equalsIgnoreCase("ECX");
+    }
+
+    private static int previous(Program program, int line) {
+        for (int i = line - 1; i >= 0; i--) {
+            if (program.parts[i] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Idiom match(List<String[]> body, String counter) {
+        Idiom idiom = new Idiom();
+        idiom.counter = counter;
+        boolean searches = counter.equals("LOOPZ") || counter.equals("LOOPNZ");
+        if (body.size() == 2 && !searches) {
+            // MOV [P], V  step P
+            String p = indirect(operand(body.get(0), "MOV", 1));
+            String v = operand(body.get(0), "MOV", 2);
+            if (p == null || !isValue(v) || v.equals(p) || (idiom.stride = step(body.get(1), p)) == 0) {
+                return null;
+            }
+            idiom.kind = Kind.FILL;
+            idiom.pointer = p;
+            idiom.value = v;
+            return idiom;
+        }
+        if (body.size() == 3) {
+            // MOV R, [P] then ADD A, R  step P, or step P  CMP R, V
+            String r = register(operand(body.get(0), "MOV", 1));
+            String p = indirect(operand(body.get(0), "MOV", 2));
+            if (r == null || p == null || r.equals(p)) {
+                return null;
+            }
+            idiom.pointer = p;
+            if (!searches) {
+                String a = register(operand(body.get(1), "ADD", 1));
+                if (a == null || a.equals(r) || a.equals(p) || !r.equals(register(operand(body.get(1), "ADD", 2)))
+                        || (idiom.stride = step(body.get(2), p)) == 0) {
+                    return null;
+                }
+                idiom.kind = Kind.SUM;
+                idiom.accumulator = a;
+                return idiom;
+            }
+            if ((idiom.stride = step(body.get(1), p)) == 0) {
+                return null;
+            }
+            String first = operand(body.get(2), "CMP", 1);
+            String second = operand(body.get(2), "CMP", 2);
+            String v = r.equals(first) ? second : r.equals(second) ? first : null;
+            if (!isValue(v) || v.equals(r) || v.equals(p)) {
+                return null;
+            }
+            idiom.kind = Kind.SEARCH;
+            idiom.value = v;
+            return idiom;
+        }
+        if (body.size() == 4 && !searches) {
+            // MOV R, [S]  MOV [D], R  step S  step D, the steps either way round
+            String r = register(operand(body.get(0), "MOV", 1));
+            String s = indirect(operand(body.get(0), "MOV", 2));
+            String d = indirect(operand(body.get(1), "MOV", 1));
+            if (r == null || s == null || d == null || r.equals(s) || r.equals(d) || s.equals(d)
+                    || !r.equals(register(operand(body.get(1), "MOV", 2)))) {
+                return null;
+            }
+            int sourceStride = step(body.get(2), s);
+            int destinationStride = step(body.get(3), d);
+            if (sourceStride == 0 || destinationStride == 0) {
+                sourceStride = step(body.get(3), s);
+                destinationStride = step(body.get(2), d);
+            }
+            if (sourceStride == 0 || destinationStride == 0) {
+                return null;
+            }
+            idiom.kind = Kind.COPY;
+            idiom.pointer = s;
+            idiom.stride = sourceStride;
+            idiom.destination = d;
+            idiom.destinationStride = destinationStride;
+            return idiom;
+        }
+        return null;
+    }
+
+    // The operand at index of an instruction with this opcode and two operands, upper case
+    private static String operand(String[] parts, String op, int index) {
+        if (parts.length != 3 || !parts[0].equalsIgnoreCase(op)) {
+            return null;
+        }
+        return parts[index].toUpperCase();
+    }
+
+    // Constant a step instruction adds to the register, 0 when it is not one
+    private static int step(String[] parts, String register) {
+        if (parts.length != 3 || !parts[1].equalsIgnoreCase(register) || !isDecimal(parts[2])) {
+            return 0;
+        }
+        int amount = Integer.parseInt(parts[2]);
+        String op = parts[0].toUpperCase();
+        return op.equals("ADD") ? amount : op.equals("SUB") ? -amount : 0;
+    }
+
+    // The register of a [REG] operand
+    private static String indirect(String operand) {
+        if (operand == null || !operand.startsWith("[") || !operand.endsWith("]")) {
+            return null;
+        }
+        return register(operand.substring(1, operand.length() - 1));
+    }
+
+    private static String register(String operand) {
+        if (operand == null || operand.equals("ECX")) {
+            return null;
+        }
+        for (String name : CPU.GENERAL_REGISTERS) {
+            if (name.equals(operand)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isValue(String operand) {
+        return register(operand) != null || operand != null && isDecimal(operand);
+    }
+
+    private static boolean isDecimal(String operand) {
+        try {
+            Integer.parseInt(operand);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Runs all but the last iteration of the loop starting at its label and returns how many
+    // instructions that saved, at most budget. Returns 0 when nothing could be skipped.
+    static long skip(Idiom idiom, CPU cpu, long budget) {
+        long iterations;
+        switch (idiom.counter) {
+            case "LOOP":
+                iterations = cpu.getRegister("CX") & 0xFFFF; // The body runs CX + 1 times
+                break;
+            case "DEC":
+                iterations = (cpu.getRegister("ECX") - 1) & 0xFFFFFFFFL;
+                break;
+            default:
+                iterations = cpu.getRegister("ECX") & 0xFFFFFFFFL; // At most, the search can stop early
+                break;
+        }
+        // Every iteration including the interpreted one has to fit the iteration limit and memory
+        long whole = Math.min(iterations + 1, budget / idiom.instructions);
+        int p = cpu.getRegister(idiom.pointer);
+        whole = Math.min(whole, inMemory(cpu, p, idiom.stride, whole));
+        int d = 0;
+        if (idiom.kind == Kind.COPY) {
+            d = cpu.getRegister(idiom.destination);
+            whole = Math.min(whole, inMemory(cpu, d, idiom.destinationStride, whole));
+        }
+        // Otherwise the run stops in the first iteration that does not, maybe before it wrote any
+        // flag, so the one in front of it is interpreted as well to leave its flags behind
+        long skipped = Math.min(whole > iterations ? iterations : whole - 1, MAX_SKIP);
+        if (skipped <= 0) {
+            return 0;
+        }
+        int n = (int) skipped;
+        switch (idiom.kind) {
+            case FILL:
+                fill(cpu, p, idiom.stride, n, value(cpu, idiom.value));
+                break;
+            case COPY:
+                copy(cpu, p, idiom.stride, d, idiom.destinationStride, n);
+                cpu.setRegister(idiom.destination, d + n * idiom.destinationStride);
+                break;
+            case SUM:
+                int sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += cpu.getMemory(p + i * idiom.stride);
+                }
+                cpu.setRegister(idiom.accumulator, cpu.getRegister(idiom.accumulator) + sum);
+                break;
+            case SEARCH:
+                // Stop in front of the iteration whose compare ends the loop, that one is interpreted
+                int target = value(cpu, idiom.value);
+                boolean whileEqual = idiom.counter.equals("LOOPZ");
+                int i = 0;
+                while (i < n && (cpu.getMemory(p + i * idiom.stride) == target) == whileEqual) {
+                    i++;
+                }
+                n = i;
+                if (n == 0) {
+                    return 0;
+                }
+                break;
+        }
+        // R of the last skipped iteration is loaded again by the one that is interpreted
+        cpu.setRegister(idiom.pointer, p + n * idiom.stride);
+        if (idiom.counter.equals("LOOP")) {
+            cpu.setRegister("CX", cpu.getRegister("CX") - n);
+        } else {
+            cpu.setRegister("ECX", cpu.getRegister("ECX") - n);
+        }
+        return (long) n * idiom.instructions;
+    }
+
+    // How many of count 4-byte accesses from address on, stride apart, can be made in a row
+    private static long inMemory(CPU cpu, int address, int stride, long count) {
+        if (count <= 0 || !cpu.isMemoryRange(address, 4)) {
+            return 0;
+        }
+        long start = Integer.toUnsignedLong(address); // Addresses are unsigned, see PagedMemory
+        long last = start + (count - 1) * stride;
+        if (last >= 0 && last + 4 <= cpu.memorySize()) {
+            return count;
+        }
+        long room = stride > 0 ? (cpu.memorySize() - 4L - start) / stride : start / -stride;
+        return room + 1;
+    }
+
+    private static int value(CPU cpu, String operand) {
+        return register(operand) != null ? cpu.getRegister(operand) : Integer.parseInt(operand);
+    }
+
+    private static void fill(CPU cpu, int address, int stride, int count, int value) {
+        if (stride == 4 || stride == -4) {
+            int low = stride > 0 ? address : address + (count - 1) * stride;
+            cpu.fillMemory(low, count * 4, value, 4);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            cpu.setMemory(address + i * stride, value);
+        }
+    }
+
+    private static void copy(CPU cpu, int source, int sourceStride, int destination, int destinationStride, int count) {
+        if (sourceStride == destinationStride && (sourceStride == 4 || sourceStride == -4)) {
+            int length = count * 4;
+            int sourceLow = sourceStride > 0 ? source : source - length + 4;
+            int destinationLow = sourceStride > 0 ? destination : destination - length + 4;
+            // Element by element a copy only differs from arraycopy when it reads bytes it wrote
+            if (destinationLow + length <= sourceLow || sourceLow + length <= destinationLow) {
+                cpu.copyMemory(sourceLow, destinationLow, length);
+                return;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            cpu.setMemory(destination + i * destinationStride, cpu.getMemory(source + i * sourceStride));
+        }
+    }
+}
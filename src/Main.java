@@ -1,18 +1,194 @@
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Main {
     public static void main(String[] args) {
-        Assembler assembler = new Assembler();
-        String code = "";
+        List<Path> files = new ArrayList<>();
+        boolean optimize = false;
+        boolean compare = false;
+        boolean perf = false;
+        boolean assemble = false;
+        Path linkOutput = null;
+        long fuzzSeconds = 0;
+        int recordSize = -1;
+        Path benchDirectory = null;
+        Path baseline = null;
+        boolean updateBaseline = false;
+        double threshold = -1;
+        long memorySize = 1024;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-O")) {
+                optimize = true;
+            } else if (arg.equals("--perf")) {
+                perf = true; // Estimate cycles, cache misses and mispredictions per line
+            } else if (arg.equals("--compare-optimizer")) {
+                compare = true;
+            } else if (arg.equals("-c")) {
+                assemble = true; // Write file.jobj for every file.asm instead of running it
+            } else if (arg.equals("--link") && i + 1 < args.length) {
+                linkOutput = Paths.get(args[++i]); // Link the object files into one
+            } else if (arg.equals("--fuzz") && i + 1 < args.length) {
+                fuzzSeconds = Long.parseLong(args[++i]); // Fuzz the program's inputs for this many seconds
+            } else if (arg.equals("--records") && i + 1 < args.length) {
+                recordSize = Integer.parseInt(args[++i]); // Transform records from stdin to stdout, 0 for length-prefixed
+            } else if (arg.equals("--bench") && i + 1 < args.length) {
+                benchDirectory = Paths.get(args[++i]); // Run the benchmark corpus in this directory
+            } else if (arg.equals("--baseline") && i + 1 < args.length) {
+                baseline = Paths.get(args[++i]); // Fail the benchmark run when it is slower than this
+            } else if (arg.equals("--update-baseline")) {
+                updateBaseline = true;
+            } else if (arg.equals("--threshold") && i + 1 < args.length) {
+                threshold = Double.parseDouble(args[++i]) / 100; // Allowed slowdown in percent, 10 by default
+            } else if (arg.equals("--memory") && i + 1 < args.length) {
+                memorySize = parseSize(args[++i]); // Guest memory in bytes, K, M or G, up to 4G
+            } else {
+                files.add(Paths.get(arg));
+            }
+        }
+        if (benchDirectory != null) {
+            Benchmark benchmark = new Benchmark();
+            if (threshold >= 0) {
+                benchmark.threshold = threshold;
+            }
+            try {
+                List<Benchmark.Result> results = benchmark.runAll(benchDirectory);
+                for (Benchmark.Result result : results) {
+                    System.out.println(result);
+                }
+                if (baseline != null && (updateBaseline || !Files.exists(baseline))) {
+                    Benchmark.writeBaseline(baseline, results);
+                    System.out.println("Baseline written to " + baseline);
+                } else if (baseline != null) {
+                    List<String> regressions = benchmark.regressions(results, Benchmark.readBaseline(baseline));
+                    for (String regression : regressions) {
+                        System.out.println("Regression: " + regression);
+                    }
+                    if (!regressions.isEmpty()) {
+                        System.exit(1);
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("Benchmark failed: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        if (files.isEmpty()) {
+            files.add(Paths.get("C:\\Users\\AghoyPandaaa\\IdeaProjects\\JASM\\src\\test2.asm"));
+        }
 
+        Program program;
         try {
-            code = new String(Files.readAllBytes(Paths.get("C:\\Users\\AghoyPandaaa\\IdeaProjects\\JASM\\src\\test2.asm")));
+            if (assemble) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString().replaceFirst("\\.asm$", "");
+                    ObjectModule module = ObjectModule.assemble(name, new String(Files.readAllBytes(file)));
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    module.write(bytes);
+                    module.checkRoundTrip(bytes.toByteArray());
+                    Files.write(file.resolveSibling(name + ".jobj"), bytes.toByteArray());
+                }
+                return;
+            }
+            if (linkOutput != null || files.get(0).toString().endsWith(".jobj")) {
+                program = Linker.load(files);
+                if (linkOutput != null) {
+                    try (OutputStream out = Files.newOutputStream(linkOutput)) {
+                        new ObjectModule(files.get(0).getFileName().toString().replaceFirst("\\.jobj$", ""), program).write(out);
+                    }
+                    return;
+                }
+            } else {
+                program = Program.parse(new String(Files.readAllBytes(files.get(0))));
+                program.name = files.get(0).getFileName().toString().replaceFirst("\\.asm$", "");
+            }
         } catch (Exception e) {
             System.out.println("Error reading file: " + e.getMessage());
             return;
         }
 
-        assembler.runCode(code);
+        if (fuzzSeconds > 0) {
+            Fuzzer fuzzer = new Fuzzer(program, 64);
+            try {
+                fuzzer.run(Runtime.getRuntime().availableProcessors(), fuzzSeconds * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("Executions: " + fuzzer.executions() + " (" + fuzzer.executions() / fuzzSeconds + "/s)");
+            System.out.println("Corpus: " + fuzzer.corpusSize());
+            for (Fuzzer.Crash crash : fuzzer.crashes()) {
+                System.out.println(crash);
+            }
+            return;
+        }
+
+        if (recordSize >= 0) {
+            RecordProcessor processor = new RecordProcessor(program, recordSize, 16384, Runtime.getRuntime().availableProcessors());
+            try {
+                long start = System.nanoTime();
+                long records = processor.process(System.in, System.out);
+                long elapsed = Math.max(System.nanoTime() - start, 1);
+                System.err.println("Records: " + records + ", failed: " + processor.failedRecords() + ", "
+                        + records * 1_000_000_000L / elapsed + " records/s");
+            } catch (Exception e) {
+                System.err.println("Error processing records: " + e.getMessage());
+            }
+            return;
+        }
+
+        if (compare) {
+            // Run the program as written and optimized, and show how many instructions each executed
+            Program optimized = Optimizer.optimize(program);
+            Assembler plain = new Assembler();
+            plain.runProgram(program);
+            Assembler fast = new Assembler();
+            fast.runProgram(optimized);
+            System.out.println("Instructions: " + program.instructionCount() + " -> " + optimized.instructionCount());
+            System.out.println("Executed: " + plain.iterationCount + " -> " + fast.iterationCount);
+            return;
+        }
+
+        Assembler assembler;
+        try {
+            assembler = new Assembler(memorySize);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        assembler.optimize = optimize;
+        PerformanceModel model = null;
+        if (perf) {
+            model = new PerformanceModel(assembler);
+            model.attach();
+        }
+        assembler.runProgram(program);
+        if (model != null) {
+            System.out.print(model.report());
+        }
+    }
+
+    // 64K, 16M, 4G or plain bytes
+    private static long parseSize(String size) {
+        long unit = 1;
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K':
+                unit = 1L << 10;
+                break;
+            case 'M':
+                unit = 1L << 20;
+                break;
+            case 'G':
+                unit = 1L << 30;
+                break;
+            default:
+                return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, size.length() - 1)) * unit;
     }
-}
\ No newline at end of file
+}
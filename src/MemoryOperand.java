@@ -0,0 +1,68 @@
+// A memory operand: [REG] or [REG+OFFSET], optionally sized by BYTE, WORD, DWORD or QWORD PTR.
+// Program.split joins "BYTE PTR [EBX]" into one uppercased operand, and every operand of a
+// program is decoded once when it is loaded, see Program.memoryOperands.
+class MemoryOperand {
+    final String base;
+    final int offset;
+    final int size; // In bytes, 0 when no PTR gives it and the instruction decides
+
+    private MemoryOperand(String base, int offset, int size) {
+        this.base = base;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    // Cheap test on the text, decode checks the rest
+    static boolean is(String operand) {
+        return operand.endsWith("]") && (operand.startsWith("[") || operand.contains(" PTR ["));
+    }
+
+    // Null when the operand is not a valid memory operand
+    static MemoryOperand decode(String operand) {
+        if (!is(operand)) {
+            return null;
+        }
+        operand = operand.toUpperCase();
+        int size = 0;
+        int bracket = operand.indexOf('[');
+        if (bracket > 0) {
+            String prefix = operand.substring(0, bracket).trim();
+            if (!prefix.endsWith(" PTR")) {
+                return null;
+            }
+            size = size(prefix.substring(0, prefix.length() - 4).trim());
+            if (size == 0) {
+                return null;
+            }
+        }
+        String[] address = operand.substring(bracket + 1, operand.length() - 1).split("\\+");
+        if (address.length > 2 || !CPU.isRegister(address[0])) {
+            return null;
+        }
+        int offset = 0;
+        if (address.length == 2) {
+            try {
+                offset = Integer.parseInt(address[1]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return new MemoryOperand(address[0], offset, size);
+    }
+
+    // Bytes of a PTR type, 0 for anything else
+    static int size(String type) {
+        switch (type) {
+            case "BYTE":
+                return 1;
+            case "WORD":
+                return 2;
+            case "DWORD":
+                return 4;
+            case "QWORD":
+                return 8;
+            default:
+                return 0;
+        }
+    }
+}
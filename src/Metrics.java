@@ -0,0 +1,183 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Run counts, instruction counts and latency histograms per program and exit reason, see
+// JasmVM.setMetrics. Recording is lock free (LongAdder counters and an AtomicLongArray per
+// histogram) and allocates nothing once a program has been seen, so it can stay on in production.
+// toText() and toJson() take a snapshot whenever they are called.
+public class Metrics {
+    private static final ExecutionResult.ExitReason[] REASONS = ExecutionResult.ExitReason.values();
+
+    // Latency histogram with fixed memory: values below 8 get their own bucket, above that every
+    // power of two is split into 8 buckets, so a percentile is off by at most 12.5%. Covers up to
+    // 2^42 ns (over an hour) in 328 buckets, anything longer lands in the last one.
+    static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = 41 * SUB_BUCKETS;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long value) {
+            counts.incrementAndGet(Math.min(index(Math.max(value, 0)), BUCKETS - 1));
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (magnitude - 3)) & (SUB_BUCKETS - 1);
+            return (magnitude - 2) * SUB_BUCKETS + sub;
+        }
+
+        // Largest value that falls in the bucket
+        private static long highest(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int magnitude = index / SUB_BUCKETS + 2;
+            long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (magnitude - 3);
+            return lowest + (1L << (magnitude - 3)) - 1;
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        // quantile between 0 and 1, for example 0.99 for p99. Returns 0 when nothing was recorded.
+        long percentile(double quantile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return highest(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    static class ProgramMetrics {
+        final LongAdder[] runs = new LongAdder[REASONS.length];
+        final Histogram[] latency = new Histogram[REASONS.length]; // Nanoseconds per run
+        final LongAdder instructions = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+
+        ProgramMetrics() {
+            for (int i = 0; i < REASONS.length; i++) {
+                runs[i] = new LongAdder();
+                latency[i] = new Histogram();
+            }
+        }
+    }
+
+    private final Map<String, ProgramMetrics> programs = new ConcurrentHashMap<>();
+
+    public void record(String programId, ExecutionResult result) {
+        ProgramMetrics metrics = programs.get(programId);
+        if (metrics == null) {
+            metrics = programs.computeIfAbsent(programId, id -> new ProgramMetrics());
+        }
+        int reason = result.exitReason.ordinal();
+        metrics.runs[reason].increment();
+        metrics.latency[reason].record(result.elapsedNanos);
+        metrics.instructions.add(result.instructionsRetired);
+        metrics.nanos.add(result.elapsedNanos);
+    }
+
+    public void clear() {
+        programs.clear();
+    }
+
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ProgramMetrics> entry : new TreeMap<>(programs).entrySet()) {
+            ProgramMetrics metrics = entry.getValue();
+            long runs = totalRuns(metrics);
+            sb.append(entry.getKey()).append(": ").append(runs).append(" runs, ")
+                    .append(instructionsPerSecond(metrics)).append(" instructions/s, error rate ")
+                    .append(String.format("%.4f", errorRate(metrics, runs))).append('\n');
+            for (ExecutionResult.ExitReason reason : REASONS) {
+                Histogram latency = metrics.latency[reason.ordinal()];
+                long count = metrics.runs[reason.ordinal()].sum();
+                if (count == 0) {
+                    continue;
+                }
+                sb.append("  ").append(reason).append(": ").append(count).append(" runs, latency ns p50=")
+                        .append(latency.percentile(0.5)).append(" p99=").append(latency.percentile(0.99))
+                        .append(" p999=").append(latency.percentile(0.999)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        boolean firstProgram = true;
+        for (Map.Entry<String, ProgramMetrics> entry : new TreeMap<>(programs).entrySet()) {
+            ProgramMetrics metrics = entry.getValue();
+            long runs = totalRuns(metrics);
+            if (!firstProgram) {
+                sb.append(',');
+            }
+            firstProgram = false;
+            sb.append('"').append(escape(entry.getKey())).append("\":{\"runs\":").append(runs)
+                    .append(",\"instructions\":").append(metrics.instructions.sum())
+                    .append(",\"instructionsPerSecond\":").append(instructionsPerSecond(metrics))
+                    .append(",\"errorRate\":").append(errorRate(metrics, runs)).append(",\"exitReasons\":{");
+            boolean firstReason = true;
+            for (ExecutionResult.ExitReason reason : REASONS) {
+                Histogram latency = metrics.latency[reason.ordinal()];
+                long count = metrics.runs[reason.ordinal()].sum();
+                if (count == 0) {
+                    continue;
+                }
+                if (!firstReason) {
+                    sb.append(',');
+                }
+                firstReason = false;
+                sb.append('"').append(reason).append("\":{\"runs\":").append(count)
+                        .append(",\"p50\":").append(latency.percentile(0.5))
+                        .append(",\"p99\":").append(latency.percentile(0.99))
+                        .append(",\"p999\":").append(latency.percentile(0.999)).append('}');
+            }
+            sb.append("}}");
+        }
+        return sb.append('}').toString();
+    }
+
+    private static long totalRuns(ProgramMetrics metrics) {
+        long runs = 0;
+        for (LongAdder count : metrics.runs) {
+            runs += count.sum();
+        }
+        return runs;
+    }
+
+    private static long instructionsPerSecond(ProgramMetrics metrics) {
+        long nanos = metrics.nanos.sum();
+        return nanos == 0 ? 0 : (long) (metrics.instructions.sum() * 1e9 / nanos);
+    }
+
+    // Runs that did not complete, iteration limits count as errors too
+    private static double errorRate(ProgramMetrics metrics, long runs) {
+        return runs == 0 ? 0 : (double) (runs - metrics.runs[ExecutionResult.ExitReason.COMPLETED.ordinal()].sum()) / runs;
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// A pre-assembled module and its binary object file, written with "Main -c file.asm" and
+// combined by the Linker. The file is what DataOutputStream writes:
+//   int magic "JASM", short version, UTF module name, int entry line
+//   string table: int count, UTF strings (opcodes, operands and labels are stored once)
+//   code: int line count, then per line a kind byte: 0 blank, 1 label (int name),
+//         2 instruction (int part count, int string index per part)
+//   data: int count, then per variable definition its int line and parts like an instruction
+//   symbols: int count, per label its int name, int line and a byte that is 1 when PUBLIC
+//   externs: int count, int name each
+//   relocations: int count, per label reference its int line and byte operand index
+// Lines are relative to the module, loading one builds the Program without any lexing.
+class ObjectModule {
+    static final int MAGIC = 0x4A41534D;
+    static final int VERSION = 2; // 2: part counts are ints, data lines can have any number of values
+
+    String name;
+    Program program;
+    List<int[]> relocations; // {line, operand} of every operand that names a label
+
+    ObjectModule(String name, Program program) {
+        this.name = name;
+        this.program = program;
+        program.name = name;
+        relocations = new ArrayList<>();
+        for (int line = 0; line < program.size(); line++) {
+            String[] parts = program.parts[line];
+            if (parts != null && parts.length >= 2 && (FlagLiveness.isBranch(parts[0]) || parts[0].equals("SPAWN"))) {
+                relocations.add(new int[]{line, 1});
+            }
+        }
+    }
+
+    static ObjectModule assemble(String name, String code) {
+        return new ObjectModule(name, Program.parse(code));
+    }
+
+    void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (String[] parts : program.parts) {
+            intern(strings, parts);
+        }
+        for (String[] parts : program.data) {
+            intern(strings, parts);
+        }
+        intern(strings, program.labels.keySet().toArray(new String[0]));
+        intern(strings, program.externs.toArray(new String[0]));
+        Map<Integer, String> labelLines = new HashMap<>();
+        for (Map.Entry<String, Integer> label : program.labels.entrySet()) {
+            labelLines.put(label.getValue(), label.getKey());
+        }
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(name);
+        out.writeInt(program.entry);
+        out.writeInt(strings.size());
+        for (String string : strings.keySet()) {
+            out.writeUTF(string);
+        }
+        out.writeInt(program.size());
+        for (int line = 0; line < program.size(); line++) {
+            if (program.parts[line] != null) {
+                out.writeByte(2);
+                writeParts(out, strings, program.parts[line]);
+            } else if (labelLines.containsKey(line)) {
+                out.writeByte(1);
+                out.writeInt(strings.get(labelLines.get(line)));
+            } else {
+                out.writeByte(0);
+            }
+        }
+        out.writeInt(program.data.length);
+        for (int i = 0; i < program.data.length; i++) {
+            out.writeInt(program.dataLines[i]);
+            writeParts(out, strings, program.data[i]);
+        }
+        out.writeInt(program.labels.size());
+        for (Map.Entry<String, Integer> label : program.labels.entrySet()) {
+            out.writeInt(strings.get(label.getKey()));
+            out.writeInt(label.getValue());
+            out.writeByte(program.publics.contains(label.getKey()) ? 1 : 0);
+        }
+        out.writeInt(program.externs.size());
+        for (String extern : program.externs) {
+            out.writeInt(strings.get(extern));
+        }
+        out.writeInt(relocations.size());
+        for (int[] relocation : relocations) {
+            out.writeInt(relocation[0]);
+            out.writeByte(relocation[1]);
+        }
+        out.flush();
+    }
+
+    static ObjectModule read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a JASM object file");
+        }
+        int version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported object file version: " + version);
+        }
+        String name = in.readUTF();
+        int entry = in.readInt();
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+        int size = in.readInt();
+        String[] lines = new String[size];
+        String[][] parts = new String[size][];
+        for (int line = 0; line < size; line++) {
+            int kind = in.readByte();
+            if (kind == 2) {
+                parts[line] = readParts(in, strings);
+                lines[line] = format(parts[line]);
+            } else if (kind == 1) {
+                lines[line] = string(in, strings) + ":";
+            } else {
+                lines[line] = "";
+            }
+        }
+        String[][] data = new String[in.readInt()][];
+        int[] dataLines = new int[data.length];
+        for (int i = 0; i < data.length; i++) {
+            dataLines[i] = in.readInt();
+            data[i] = readParts(in, strings);
+            lines[dataLines[i]] = format(data[i]);
+        }
+        Map<String, Integer> labels = new HashMap<>();
+        Set<String> publics = new HashSet<>();
+        int symbols = in.readInt();
+        for (int i = 0; i < symbols; i++) {
+            String label = string(in, strings);
+            labels.put(label, in.readInt());
+            if (in.readByte() == 1) {
+                publics.add(label);
+            }
+        }
+        Set<String> externs = new HashSet<>();
+        int externCount = in.readInt();
+        for (int i = 0; i < externCount; i++) {
+            externs.add(string(in, strings));
+        }
+        Program program = new Program(lines, parts, labels, data, dataLines);
+        program.entry = entry;
+        program.publics = publics;
+        program.externs = externs;
+        ObjectModule module = new ObjectModule(name, program);
+        module.relocations.clear();
+        int relocationCount = in.readInt();
+        for (int i = 0; i < relocationCount; i++) {
+            module.relocations.add(new int[]{in.readInt(), in.readByte()});
+        }
+        return module;
+    }
+
+    private static void intern(Map<String, Integer> strings, String[] parts) {
+        if (parts == null) {
+            return;
+        }
+        for (String part : parts) {
+            strings.putIfAbsent(part, strings.size());
+        }
+    }
+
+    private static void writeParts(DataOutputStream out, Map<String, Integer> strings, String[] parts) throws IOException {
+        out.writeInt(parts.length);
+        for (String part : parts) {
+            out.writeInt(strings.get(part));
+        }
+    }
+
+    private static String[] readParts(DataInputStream in, String[] strings) throws IOException {
+        int count = in.readInt();
+        if (count < 1) {
+            throw new IOException("Corrupt object file: " + count + " parts on a line");
+        }
+        // A line can repeat a string any number of times, so the count is only bounded by the
+        // file; the list grows as the parts are read and a bogus count runs into the end
+        List<String> parts = new ArrayList<>(Math.min(count, 16));
+        for (int i = 0; i < count; i++) {
+            parts.add(string(in, strings));
+        }
+        return parts.toArray(new String[0]);
+    }
+
+    private static String string(DataInputStream in, String[] strings) throws IOException {
+        int index = in.readInt();
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("Corrupt object file: string " + index + " of " + strings.length);
+        }
+        return strings[index];
+    }
+
+    // Reads back what write produced and checks it gives the same program, so a format mistake
+    // shows up when the file is made and not when it is linked
+    void checkRoundTrip(byte[] written) throws IOException {
+        ObjectModule copy = read(new ByteArrayInputStream(written));
+        Program other = copy.program;
+        if (!Arrays.deepEquals(program.parts, other.parts) || !Arrays.deepEquals(program.data, other.data)
+                || !Arrays.equals(program.dataLines, other.dataLines) || !program.labels.equals(other.labels)
+                || program.entry != other.entry || !program.publics.equals(other.publics)
+                || !program.externs.equals(other.externs)) {
+            throw new IOException("Object file of " + name + " does not read back as the same program");
+        }
+    }
+
+    // Source text for error messages and the debugger, the original spacing is not kept
+    static String format(String[] parts) {
+        StringBuilder sb = new StringBuilder(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            sb.append(i == 1 ? " " : ", ").append(parts[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,435 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Optional clean-up pass over a loaded program, see Assembler.optimize. Works one basic block at
+// a time: constant and copy propagation, folding arithmetic whose flags are dead into a MOV,
+// ADD/SUB by 1 into INC/DEC, dropping identities and redundant moves, removing register writes
+// that are overwritten before being read, and cancelling XCHG, INC/DEC and PUSH/POP pairs.
+// Only instructions whose operands are 32-bit registers or decimal numbers are changed, since
+// those can not fail at runtime; everything else just ends what is known about the registers
+// it touches. Removed instructions become empty lines so line numbers and labels stay the same.
+// Output and the final state are the same as without the pass for programs that run to the
+// end; after a runtime error a register write that was removed as dead may be missing.
+class Optimizer {
+    private static final String[] REGISTERS = {"EAX", "EBX", "ECX", "EDX", "ESI", "EDI", "EBP", "ESP"};
+    private static final int ALL_REGISTERS = 0xFF;
+    private static final int ESP = 7;
+    private static final int MAX_ROUNDS = 8;
+
+    static Program optimize(Program program) {
+        Program result = program.withParts(program.parts.clone());
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            int[] liveFlags = FlagLiveness.analyze(result);
+            boolean changed = false;
+            for (List<Integer> block : basicBlocks(result)) {
+                changed |= propagate(result.parts, block, liveFlags);
+                changed |= removeDeadStores(result.parts, block, liveFlags);
+                changed |= removePairs(result.parts, block, liveFlags);
+            }
+            if (!changed) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static List<List<Integer>> basicBlocks(Program program) {
+        List<List<Integer>> blocks = new ArrayList<>();
+        List<Integer> block = new ArrayList<>();
+        for (int line = 0; line < program.size(); line++) {
+            String[] parts = program.parts[line];
+            if (parts == null) {
+                // Label lines start a new block, blank lines do not
+                if (program.isLabel(line) && !block.isEmpty()) {
+                    blocks.add(block);
+                    block = new ArrayList<>();
+                }
+                continue;
+            }
+            block.add(line);
+            if (FlagLiveness.isBranch(parts[0]) || parts[0].equals("RET")) {
+                blocks.add(block);
+                block = new ArrayList<>();
+            }
+        }
+        if (!block.isEmpty()) {
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    // Forward pass tracking registers that hold a known constant or a copy of another register
+    private static boolean propagate(String[][] code, List<Integer> block, int[] liveFlags) {
+        Integer[] constant = new Integer[8];
+        int[] copyOf = new int[8];
+        Arrays.fill(copyOf, -1);
+        boolean changed = false;
+        for (int line : block) {
+            String[] parts = code[line];
+            if (parts == null) {
+                continue;
+            }
+            String op = parts[0];
+            boolean flagsDead = (liveFlags[line] & FlagLiveness.flagsWritten(parts)) == 0;
+            String[] replacement = null;
+            boolean remove = false;
+            if (isShape(parts, 2) && (op.equals("MOV") || isArithmetic(op))) {
+                int dest = register(parts[1]);
+                int src = register(parts[2]);
+                Integer srcValue = src >= 0 ? constant[src] : Integer.valueOf(Integer.parseInt(parts[2]));
+                Integer destValue = constant[dest];
+                String srcText = src >= 0 && srcValue != null ? srcValue.toString() : parts[2];
+                Integer result = null;
+                if (op.equals("MOV")) {
+                    result = srcValue;
+                    if (dest == src || (srcValue != null && srcValue.equals(destValue))
+                            || (src >= 0 && (copyOf[dest] == src || copyOf[src] == dest))) {
+                        remove = true;
+                    } else if (src >= 0 && srcValue != null) {
+                        replacement = new String[]{"MOV", parts[1], srcText};
+                    }
+                } else {
+                    boolean selfCancel = dest == src && (op.equals("XOR") || op.equals("SUB"));
+                    if (selfCancel) {
+                        result = 0;
+                    } else if (destValue != null && srcValue != null) {
+                        result = apply(op, destValue, srcValue);
+                    } else if (op.equals("AND") && srcValue != null && srcValue == 0) {
+                        result = 0;
+                    }
+                    if (flagsDead && result != null) {
+                        replacement = new String[]{"MOV", parts[1], result.toString()};
+                    } else if (flagsDead && srcValue != null && isIdentity(op, srcValue)) {
+                        remove = true;
+                    } else if (srcValue != null && srcValue == 1 && (op.equals("ADD") || op.equals("SUB"))) {
+                        // INC/DEC set the flags exactly like ADD/SUB with 1 here
+                        replacement = new String[]{op.equals("ADD") ? "INC" : "DEC", parts[1]};
+                    } else if (src >= 0 && srcValue != null && !selfCancel) {
+                        replacement = new String[]{op, parts[1], srcText};
+                    }
+                }
+                forget(constant, copyOf, dest);
+                constant[dest] = result;
+                if (op.equals("MOV") && src >= 0 && src != dest && result == null) {
+                    copyOf[dest] = src;
+                }
+            } else if (isShape(parts, 1) && (op.equals("INC") || op.equals("DEC") || op.equals("NEG"))) {
+                int dest = register(parts[1]);
+                Integer result = constant[dest] == null ? null
+                        : op.equals("INC") ? constant[dest] + 1 : op.equals("DEC") ? constant[dest] - 1 : -constant[dest];
+                if (flagsDead && result != null) {
+                    replacement = new String[]{"MOV", parts[1], result.toString()};
+                }
+                forget(constant, copyOf, dest);
+                constant[dest] = result;
+            } else if (isShape(parts, 2) && (op.equals("CMP") || op.equals("TEST"))) {
+                int src = register(parts[2]);
+                if (src >= 0 && constant[src] != null) {
+                    replacement = new String[]{op, parts[1], constant[src].toString()};
+                }
+            } else if (isShape(parts, 1) && op.equals("PUSH")) {
+                int src = register(parts[1]);
+                if (src >= 0 && constant[src] != null) {
+                    replacement = new String[]{"PUSH", constant[src].toString()};
+                }
+                forget(constant, copyOf, ESP);
+            } else if (isShape(parts, 2) && op.equals("XCHG") && register(parts[1]) >= 0 && register(parts[2]) >= 0) {
+                int first = register(parts[1]);
+                int second = register(parts[2]);
+                Integer swapped = constant[first];
+                Integer other = constant[second];
+                forget(constant, copyOf, first);
+                forget(constant, copyOf, second);
+                constant[first] = other;
+                constant[second] = swapped;
+            } else {
+                int clobbered = clobbers(parts);
+                for (int r = 0; r < 8; r++) {
+                    if ((clobbered & (1 << r)) != 0) {
+                        forget(constant, copyOf, r);
+                    }
+                }
+            }
+            if (remove) {
+                code[line] = null;
+                changed = true;
+            } else if (replacement != null && !Arrays.equals(replacement, parts)) {
+                code[line] = replacement;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Drops a register write when the next instruction in the block that touches the register
+    // overwrites it without reading it
+    private static boolean removeDeadStores(String[][] code, List<Integer> block, int[] liveFlags) {
+        boolean changed = false;
+        for (int i = 0; i < block.size(); i++) {
+            String[] parts = code[block.get(i)];
+            int dest = pureWrite(parts, liveFlags[block.get(i)]);
+            if (dest < 0) {
+                continue;
+            }
+            for (int j = i + 1; j < block.size(); j++) {
+                String[] next = code[block.get(j)];
+                if (next == null) {
+                    continue;
+                }
+                if ((reads(next) & (1 << dest)) != 0) {
+                    break;
+                }
+                if ((fullWrites(next) & (1 << dest)) != 0) {
+                    code[block.get(i)] = null;
+                    changed = true;
+                    break;
+                }
+                if ((clobbers(next) & (1 << dest)) != 0) {
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static boolean removePairs(String[][] code, List<Integer> block, int[] liveFlags) {
+        boolean changed = false;
+        int previous = -1;
+        for (int line : block) {
+            String[] parts = code[line];
+            if (parts == null) {
+                continue;
+            }
+            if (previous >= 0 && cancels(code[previous], parts, liveFlags[line])) {
+                code[previous] = null;
+                code[line] = null;
+                changed = true;
+                previous = -1;
+                continue;
+            }
+            previous = line;
+        }
+        return changed;
+    }
+
+    private static boolean cancels(String[] first, String[] second, int liveAfterSecond) {
+        String a = first[0];
+        String b = second[0];
+        if (a.equals("XCHG") && b.equals("XCHG") && isShape(first, 2) && isShape(second, 2)
+                && register(first[1]) >= 0 && register(first[2]) >= 0) {
+            String x = first[1].toUpperCase();
+            String y = first[2].toUpperCase();
+            String u = second[1].toUpperCase();
+            String v = second[2].toUpperCase();
+            return (x.equals(u) && y.equals(v)) || (x.equals(v) && y.equals(u));
+        }
+        if (((a.equals("INC") && b.equals("DEC")) || (a.equals("DEC") && b.equals("INC")))
+                && isShape(first, 1) && isShape(second, 1) && first[1].equalsIgnoreCase(second[1])) {
+            // The first one's flags are overwritten by the second, the second's must be dead
+            return (liveAfterSecond & FlagLiveness.flagsWritten(second)) == 0;
+        }
+        return a.equals("PUSH") && b.equals("POP") && isShape(first, 1) && isShape(second, 1)
+                && register(first[1]) >= 0 && register(first[1]) != ESP && first[1].equalsIgnoreCase(second[1]);
+    }
+
+    // The register an instruction writes with no other effect that matters, or -1
+    private static int pureWrite(String[] parts, int liveFlags) {
+        if (parts == null) {
+            return -1;
+        }
+        String op = parts[0];
+        boolean flagsDead = (liveFlags & FlagLiveness.flagsWritten(parts)) == 0;
+        if (isShape(parts, 2) && (op.equals("MOV") || (isArithmetic(op) && flagsDead))) {
+            return register(parts[1]);
+        }
+        if (isShape(parts, 1) && flagsDead && (op.equals("INC") || op.equals("DEC") || op.equals("NEG"))) {
+            return register(parts[1]);
+        }
+        return -1;
+    }
+
+    private static int reads(String[] parts) {
+        String op = parts[0];
+        if (isShape(parts, 2) && op.equals("MOV")) {
+            return bit(parts[2]);
+        }
+        if (isDataOp(op)) {
+            // Every register named in any operand, including 16/8-bit parts and addresses
+            int registers = 0;
+            for (int i = 1; i < parts.length; i++) {
+                registers |= mentioned(parts[i]);
+            }
+            return registers | (op.equals("PUSH") || op.equals("POP") ? 1 << ESP : 0);
+        }
+        switch (op) {
+            case "PRINT_FLAG":
+            case "STC":
+            case "CLC":
+            case "STD":
+            case "CLD":
+            case "SHOW_STACK":
+            case "SHOW_DATA":
+            case "JMP":
+            case "CALL":
+            case "RET":
+                return 0;
+            case "PRINT_REG":
+            case "PRINT":
+            case "PRINT_MEM":
+                return parts.length == 2 ? mentioned(parts[1]) : ALL_REGISTERS;
+            default:
+                if (op.startsWith("J") && !op.equals("JCXZ") && !op.equals("JECXZ") && !op.equals("JOIN")) {
+                    return 0;
+                }
+                return ALL_REGISTERS;
+        }
+    }
+
+    private static int fullWrites(String[] parts) {
+        String op = parts[0];
+        if (isShape(parts, 2) && (op.equals("MOV") || isArithmetic(op) || op.equals("XCHG"))) {
+            return bit(parts[1]) | (op.equals("XCHG") ? bit(parts[2]) : 0);
+        }
+        if (isShape(parts, 1) && (op.equals("INC") || op.equals("DEC") || op.equals("NEG") || op.equals("POP"))) {
+            return bit(parts[1]);
+        }
+        return 0;
+    }
+
+    // Registers whose known value is lost, counting partial and unknown writes
+    private static int clobbers(String[] parts) {
+        String op = parts[0];
+        if (isDataOp(op)) {
+            if (op.equals("CMP") || op.equals("TEST")) {
+                return 0;
+            }
+            int registers = op.equals("PUSH") ? 0 : writtenBy(parts, 1);
+            if (op.equals("XCHG")) {
+                registers |= writtenBy(parts, 2);
+            }
+            return registers | (op.equals("PUSH") || op.equals("POP") ? 1 << ESP : 0);
+        }
+        int registers = reads(parts);
+        if (registers == ALL_REGISTERS) {
+            return ALL_REGISTERS;
+        }
+        // Prints, flag instructions and jumps leave registers alone
+        return 0;
+    }
+
+    private static int writtenBy(String[] parts, int operand) {
+        if (parts.length <= operand || MemoryOperand.is(parts[operand])) {
+            return 0; // A memory destination
+        }
+        return mentioned(parts[operand]);
+    }
+
+    private static boolean isDataOp(String op) {
+        switch (op) {
+            case "MOV":
+            case "MOVSX":
+            case "MOVZX":
+            case "ADD":
+            case "SUB":
+            case "AND":
+            case "OR":
+            case "XOR":
+            case "CMP":
+            case "TEST":
+            case "INC":
+            case "DEC":
+            case "NEG":
+            case "XCHG":
+            case "PUSH":
+            case "POP":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // True when every operand is a 32-bit register or a decimal number and the destination is a register
+    private static boolean isShape(String[] parts, int operands) {
+        if (parts.length != operands + 1 || register(parts[1]) < 0) {
+            return false;
+        }
+        for (int i = 2; i <= operands; i++) {
+            if (register(parts[i]) < 0 && !isDecimal(parts[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isArithmetic(String op) {
+        return op.equals("ADD") || op.equals("SUB") || op.equals("AND") || op.equals("OR") || op.equals("XOR");
+    }
+
+    private static int apply(String op, int a, int b) {
+        switch (op) {
+            case "ADD":
+                return a + b;
+            case "SUB":
+                return a - b;
+            case "AND":
+                return a & b;
+            case "OR":
+                return a | b;
+            default:
+                return a ^ b;
+        }
+    }
+
+    private static boolean isIdentity(String op, int value) {
+        return op.equals("AND") ? value == -1 : value == 0;
+    }
+
+    private static void forget(Integer[] constant, int[] copyOf, int register) {
+        constant[register] = null;
+        copyOf[register] = -1;
+        for (int r = 0; r < 8; r++) {
+            if (copyOf[r] == register) {
+                copyOf[r] = -1;
+            }
+        }
+    }
+
+    private static int register(String operand) {
+        String name = operand.toUpperCase();
+        for (int i = 0; i < REGISTERS.length; i++) {
+            if (REGISTERS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int bit(String operand) {
+        int register = register(operand);
+        return register < 0 ? 0 : 1 << register;
+    }
+
+    // Registers named anywhere in an operand, including 16/8-bit parts and [REG + OFFSET]
+    private static int mentioned(String operand) {
+        String name = operand.toUpperCase();
+        int registers = 0;
+        for (int i = 0; i < REGISTERS.length; i++) {
+            String wide = REGISTERS[i];
+            String word = wide.substring(1);
+            if (name.contains(word) || name.contains(word.charAt(0) + "L") || name.contains(word.charAt(0) + "H")) {
+                registers |= 1 << i;
+            }
+        }
+        return registers;
+    }
+
+    private static boolean isDecimal(String operand) {
+        try {
+            Integer.parseInt(operand);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
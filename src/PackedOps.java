@@ -0,0 +1,37 @@
+// Lane-wise arithmetic behind the packed (XMM/YMM) instructions.
+// Every method works on the first `lanes` ints of the arrays, dst may be the same array as a or b.
+abstract class PackedOps {
+    static final PackedOps HOST = forHost();
+
+    abstract void add(int[] a, int[] b, int[] dst, int lanes);
+
+    abstract void sub(int[] a, int[] b, int[] dst, int lanes);
+
+    abstract void mul(int[] a, int[] b, int[] dst, int lanes);
+
+    abstract void and(int[] a, int[] b, int[] dst, int lanes);
+
+    abstract void or(int[] a, int[] b, int[] dst, int lanes);
+
+    abstract void xor(int[] a, int[] b, int[] dst, int lanes);
+
+    // Lanes become all ones where the comparison holds and zero otherwise, like PCMPEQD/PCMPGTD
+    abstract void compareEqual(int[] a, int[] b, int[] dst, int lanes);
+
+    abstract void compareGreater(int[] a, int[] b, int[] dst, int lanes);
+
+    abstract String name();
+
+    private static PackedOps forHost() {
+        // The Vector API is still an incubator module, it is only there when the JVM runs with
+        // --add-modules jdk.incubator.vector, so load that implementation by name
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (PackedOps) Class.forName("VectorPackedOps").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Fall through to the scalar version
+            }
+        }
+        return new ScalarPackedOps();
+    }
+}
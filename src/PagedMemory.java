@@ -0,0 +1,531 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Guest memory as a sparse address space of up to 4 GB. Addresses are unsigned 32-bit values
+// below the size, split into 4 KB pages that are only allocated when first written; a page
+// that was never written reads as zeros. A two-level table finds a page's frame: the top 10
+// bits of the page number pick a table, the low 10 the frame in it, so memory use follows the
+// pages a program touches and not how far apart they are. The last page of a size that is not
+// a multiple of 4 KB gets a shorter frame, which ends exactly at the size.
+//
+// Two small direct-mapped translation caches sit in front of the table, one for reads and one
+// for writes, so most accesses are a tag compare and an index into the frame. The read cache
+// only holds pages nobody watches, untouched ones map to a shared zero frame; the write cache
+// only holds pages that are also dirty already. A hit therefore never has to look at the page
+// flags, everything else goes through the table and keeps the WATCHED, DIRTY and USED bits.
+class PagedMemory {
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int TABLE_SHIFT = 10;
+    private static final int TABLE_SIZE = 1 << TABLE_SHIFT;
+    private static final int TLB_SIZE = 16;
+    private static final byte WATCHED = 1;
+    private static final byte DIRTY = 2; // Written since the last clearDirtyPages
+    private static final byte USED = 4; // Written since the last reset, which has to clear it
+    private static final byte[] ZERO = new byte[PAGE_SIZE];
+    // Little-endian views for the 2, 4 and 8-byte accesses, nothing is allocated per access
+    private static final VarHandle SHORTS = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static class Table {
+        final byte[][] frames = new byte[TABLE_SIZE][];
+        final byte[] flags = new byte[TABLE_SIZE];
+    }
+
+    final long size;
+    private final Table[] directory;
+    private final int[] readTags = new int[TLB_SIZE]; // Page numbers, -1 for an empty entry
+    private final byte[][] readFrames = new byte[TLB_SIZE][];
+    private final int[] writeTags = new int[TLB_SIZE];
+    private final byte[][] writeFrames = new byte[TLB_SIZE][];
+    private Watchpoints watchpoints; // Made by the first watch(), kept across reset
+
+    PagedMemory(long size) {
+        if (size < 0 || size > 1L << 32) {
+            throw new IllegalArgumentException("Memory size must be between 0 and 4 GB: " + size);
+        }
+        this.size = size;
+        long pages = (size + PAGE_MASK) >>> PAGE_SHIFT;
+        directory = new Table[(int) ((pages + TABLE_SIZE - 1) >>> TABLE_SHIFT)];
+        Arrays.fill(readTags, -1);
+        Arrays.fill(writeTags, -1);
+    }
+
+    boolean isRange(int address, long length) {
+        return length >= 0 && Integer.toUnsignedLong(address) + length <= size;
+    }
+
+    int getInt(int address) {
+        int page = address >>> PAGE_SHIFT;
+        int slot = page & (TLB_SIZE - 1);
+        int offset = address & PAGE_MASK;
+        if (readTags[slot] == page && offset <= readFrames[slot].length - 4) {
+            return (int) INTS.get(readFrames[slot], offset);
+        }
+        return (int) readSlow(address, 4);
+    }
+
+    void setInt(int address, int value) {
+        int page = address >>> PAGE_SHIFT;
+        int slot = page & (TLB_SIZE - 1);
+        int offset = address & PAGE_MASK;
+        if (writeTags[slot] == page && offset <= writeFrames[slot].length - 4) {
+            INTS.set(writeFrames[slot], offset, value);
+            return;
+        }
+        writeSlow(address, value, 4);
+    }
+
+    // 1 or 2 bytes, zero extended
+    int get(int address, int size) {
+        int page = address >>> PAGE_SHIFT;
+        int slot = page & (TLB_SIZE - 1);
+        int offset = address & PAGE_MASK;
+        if (readTags[slot] == page && offset <= readFrames[slot].length - size) {
+            byte[] frame = readFrames[slot];
+            return size == 1 ? frame[offset] & 0xFF : (short) SHORTS.get(frame, offset) & 0xFFFF;
+        }
+        return (int) readSlow(address, size);
+    }
+
+    void set(int address, int value, int size) {
+        int page = address >>> PAGE_SHIFT;
+        int slot = page & (TLB_SIZE - 1);
+        int offset = address & PAGE_MASK;
+        if (writeTags[slot] == page && offset <= writeFrames[slot].length - size) {
+            if (size == 1) {
+                writeFrames[slot][offset] = (byte) value;
+            } else {
+                SHORTS.set(writeFrames[slot], offset, (short) value);
+            }
+            return;
+        }
+        writeSlow(address, value, size);
+    }
+
+    long getLong(int address) {
+        int page = address >>> PAGE_SHIFT;
+        int slot = page & (TLB_SIZE - 1);
+        int offset = address & PAGE_MASK;
+        if (readTags[slot] == page && offset <= readFrames[slot].length - 8) {
+            return (long) LONGS.get(readFrames[slot], offset);
+        }
+        return readSlow(address, 8);
+    }
+
+    void setLong(int address, long value) {
+        int page = address >>> PAGE_SHIFT;
+        int slot = page & (TLB_SIZE - 1);
+        int offset = address & PAGE_MASK;
+        if (writeTags[slot] == page && offset <= writeFrames[slot].length - 8) {
+            LONGS.set(writeFrames[slot], offset, value);
+            return;
+        }
+        writeSlow(address, value, 8);
+    }
+
+    // Cache misses, accesses that cross a page and the ones that fault, a byte at a time
+    private long readSlow(int address, int length) {
+        checkRange(address, length);
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            int at = address + i;
+            byte[] frame = frame(at >>> PAGE_SHIFT);
+            value = value << 8 | (frame == null ? 0 : frame[at & PAGE_MASK] & 0xFF);
+        }
+        touched(address, length, false);
+        cacheRead(address >>> PAGE_SHIFT);
+        return value;
+    }
+
+    private void writeSlow(int address, long value, int length) {
+        checkRange(address, length);
+        for (int i = 0; i < length; i++) {
+            int at = address + i;
+            writableFrame(at >>> PAGE_SHIFT)[at & PAGE_MASK] = (byte) (value >> 8 * i);
+        }
+        touched(address, length, true);
+        cacheWrite(address >>> PAGE_SHIFT);
+    }
+
+    private void checkRange(int address, int length) {
+        if (!isRange(address, length)) {
+            throw new IndexOutOfBoundsException("Index " + address + " out of bounds for length " + size);
+        }
+    }
+
+    private void cacheRead(int page) {
+        if ((flags(page) & WATCHED) != 0) {
+            return;
+        }
+        byte[] frame = frame(page);
+        if (frame == null) {
+            if (((long) page + 1) * PAGE_SIZE > size) {
+                return; // A short last page has no shared zero frame
+            }
+            frame = ZERO;
+        }
+        readTags[page & (TLB_SIZE - 1)] = page;
+        readFrames[page & (TLB_SIZE - 1)] = frame;
+    }
+
+    private void cacheWrite(int page) {
+        if ((flags(page) & (WATCHED | DIRTY)) == DIRTY) {
+            writeTags[page & (TLB_SIZE - 1)] = page;
+            writeFrames[page & (TLB_SIZE - 1)] = frame(page);
+        }
+    }
+
+    private void flushCaches() {
+        Arrays.fill(readTags, -1);
+        Arrays.fill(readFrames, null);
+        flushWriteCache();
+    }
+
+    private void flushWriteCache() {
+        Arrays.fill(writeTags, -1);
+        Arrays.fill(writeFrames, null);
+    }
+
+    private byte[] frame(int page) {
+        Table table = directory[page >>> TABLE_SHIFT];
+        return table == null ? null : table.frames[page & (TABLE_SIZE - 1)];
+    }
+
+    private byte[] frameOrZero(int page) {
+        byte[] frame = frame(page);
+        return frame == null ? ZERO : frame;
+    }
+
+    private byte[] writableFrame(int page) {
+        Table table = table(page);
+        byte[] frame = table.frames[page & (TABLE_SIZE - 1)];
+        if (frame == null) {
+            frame = new byte[(int) Math.min(PAGE_SIZE, size - ((long) page << PAGE_SHIFT))];
+            table.frames[page & (TABLE_SIZE - 1)] = frame;
+            int slot = page & (TLB_SIZE - 1);
+            if (readTags[slot] == page) {
+                readFrames[slot] = frame; // It was the zero frame
+            }
+        }
+        return frame;
+    }
+
+    private Table table(int page) {
+        Table table = directory[page >>> TABLE_SHIFT];
+        if (table == null) {
+            table = new Table();
+            directory[page >>> TABLE_SHIFT] = table;
+        }
+        return table;
+    }
+
+    private byte flags(int page) {
+        Table table = directory[page >>> TABLE_SHIFT];
+        return table == null ? 0 : table.flags[page & (TABLE_SIZE - 1)];
+    }
+
+    // Marks the pages of an access and tells the watchpoints about it if one of them is watched
+    private void touched(int address, int length, boolean write) {
+        if (length <= 0) {
+            return;
+        }
+        int first = address >>> PAGE_SHIFT;
+        int last = (int) ((Integer.toUnsignedLong(address) + length - 1) >>> PAGE_SHIFT);
+        byte all = 0;
+        for (int page = first; page <= last; page++) {
+            if (write) {
+                Table table = table(page);
+                all |= table.flags[page & (TABLE_SIZE - 1)];
+                table.flags[page & (TABLE_SIZE - 1)] |= DIRTY | USED;
+            } else {
+                all |= flags(page);
+            }
+        }
+        if ((all & WATCHED) != 0) {
+            if (write) {
+                watchpoints.written(this, address, length);
+            } else {
+                watchpoints.read(address, length);
+            }
+        }
+    }
+
+    // Block operations, callers check the range first. copy works like memmove.
+    void copy(int source, int destination, int length) {
+        if (length <= 0) {
+            return;
+        }
+        long from = Integer.toUnsignedLong(source);
+        long to = Integer.toUnsignedLong(destination);
+        if (to > from && to < from + length) {
+            // The destination overlaps the end of the source, copy from the top down
+            int left = length;
+            while (left > 0) {
+                int sourceEnd = source + left;
+                int destinationEnd = destination + left;
+                int chunk = Math.min(left, Math.min(inPageBefore(sourceEnd), inPageBefore(destinationEnd)));
+                copyChunk(sourceEnd - chunk, destinationEnd - chunk, chunk);
+                left -= chunk;
+            }
+        } else {
+            int done = 0;
+            while (done < length) {
+                int chunk = Math.min(length - done, Math.min(inPageAfter(source + done), inPageAfter(destination + done)));
+                copyChunk(source + done, destination + done, chunk);
+                done += chunk;
+            }
+        }
+        touched(source, length, false);
+        touched(destination, length, true);
+    }
+
+    private static int inPageAfter(int address) {
+        return PAGE_SIZE - (address & PAGE_MASK);
+    }
+
+    private static int inPageBefore(int end) {
+        int offset = end & PAGE_MASK;
+        return offset == 0 ? PAGE_SIZE : offset;
+    }
+
+    private void copyChunk(int source, int destination, int length) {
+        byte[] from = frame(source >>> PAGE_SHIFT);
+        if (from == null && frame(destination >>> PAGE_SHIFT) == null) {
+            return; // Zeros onto zeros
+        }
+        byte[] to = writableFrame(destination >>> PAGE_SHIFT);
+        if (from == null) {
+            Arrays.fill(to, destination & PAGE_MASK, (destination & PAGE_MASK) + length, (byte) 0);
+        } else {
+            System.arraycopy(from, source & PAGE_MASK, to, destination & PAGE_MASK, length);
+        }
+    }
+
+    // Repeats the low size bytes of value (1, 2 or 4) over length bytes
+    void fill(int address, int length, int value, int size) {
+        int done = 0;
+        while (done < length) {
+            int at = address + done;
+            int offset = at & PAGE_MASK;
+            int chunk = Math.min(length - done, PAGE_SIZE - offset);
+            byte[] frame = writableFrame(at >>> PAGE_SHIFT);
+            if (size == 1) {
+                Arrays.fill(frame, offset, offset + chunk, (byte) value);
+            } else {
+                // One element in the phase it has here, then keep doubling the filled prefix
+                int filled = Math.min(size, chunk);
+                for (int i = 0; i < filled; i++) {
+                    frame[offset + i] = (byte) (value >> 8 * ((done + i) % size));
+                }
+                while (filled < chunk) {
+                    int copied = Math.min(filled, chunk - filled);
+                    System.arraycopy(frame, offset, frame, offset + filled, copied);
+                    filled += copied;
+                }
+            }
+            done += chunk;
+        }
+        touched(address, length, true);
+    }
+
+    // Index of the first differing byte between the two ranges, or -1 if they are equal. Leaves
+    // telling the watchpoints to the caller, which knows how far the compare read.
+    int mismatch(int first, int second, int length) {
+        int done = 0;
+        while (done < length) {
+            int a = first + done;
+            int b = second + done;
+            int chunk = Math.min(length - done, Math.min(inPageAfter(a), inPageAfter(b)));
+            int offsetA = a & PAGE_MASK;
+            int offsetB = b & PAGE_MASK;
+            int index = Arrays.mismatch(frameOrZero(a >>> PAGE_SHIFT), offsetA, offsetA + chunk,
+                    frameOrZero(b >>> PAGE_SHIFT), offsetB, offsetB + chunk);
+            if (index >= 0) {
+                return done + index;
+            }
+            done += chunk;
+        }
+        return -1;
+    }
+
+    void noteRead(int address, int length) {
+        touched(address, length, false);
+    }
+
+    // Host I/O: copies between guest memory and a host array, callers check the range first
+    void read(int address, byte[] bytes, int offset, int length) {
+        peek(address, bytes, offset, length);
+        touched(address, length, false);
+    }
+
+    void write(int address, byte[] bytes, int offset, int length) {
+        int done = 0;
+        while (done < length) {
+            int at = address + done;
+            int chunk = Math.min(length - done, inPageAfter(at));
+            System.arraycopy(bytes, offset + done, writableFrame(at >>> PAGE_SHIFT), at & PAGE_MASK, chunk);
+            done += chunk;
+        }
+        touched(address, length, true);
+    }
+
+    // Writes without telling the watchpoints, for undoing writes that already told them. Their
+    // CHANGE compares start over from the restored bytes.
+    void restore(int address, byte[] bytes, int offset, int length) {
+        int done = 0;
+        while (done < length) {
+            int at = address + done;
+            int chunk = Math.min(length - done, inPageAfter(at));
+            System.arraycopy(bytes, offset + done, writableFrame(at >>> PAGE_SHIFT), at & PAGE_MASK, chunk);
+            done += chunk;
+        }
+        byte all = 0;
+        int last = (int) ((Integer.toUnsignedLong(address) + length - 1) >>> PAGE_SHIFT);
+        for (int page = address >>> PAGE_SHIFT; length > 0 && page <= last; page++) {
+            Table table = table(page);
+            all |= table.flags[page & (TABLE_SIZE - 1)];
+            table.flags[page & (TABLE_SIZE - 1)] |= DIRTY | USED;
+        }
+        if ((all & WATCHED) != 0) {
+            watchpoints.reset(this);
+        }
+    }
+
+    // Copies out without telling anyone, for the watchpoints and diffs
+    void peek(int address, byte[] bytes, int offset, int length) {
+        int done = 0;
+        while (done < length) {
+            int at = address + done;
+            int chunk = Math.min(length - done, inPageAfter(at));
+            System.arraycopy(frameOrZero(at >>> PAGE_SHIFT), at & PAGE_MASK, bytes, offset + done, chunk);
+            done += chunk;
+        }
+    }
+
+    // Zeros every page written since the last reset, keeping the frames for the next run
+    void reset() {
+        for (Table table : directory) {
+            if (table == null) {
+                continue;
+            }
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                if ((table.flags[i] & USED) != 0) {
+                    if (table.frames[i] != null) {
+                        Arrays.fill(table.frames[i], (byte) 0);
+                    }
+                    table.flags[i] &= WATCHED;
+                }
+            }
+        }
+        flushWriteCache();
+        if (watchpoints != null) {
+            watchpoints.reset(this);
+        }
+    }
+
+    int allocatedPages() {
+        int count = 0;
+        for (Table table : directory) {
+            for (int i = 0; table != null && i < TABLE_SIZE; i++) {
+                count += table.frames[i] == null ? 0 : 1;
+            }
+        }
+        return count;
+    }
+
+    int[] dirtyPages() {
+        int count = 0;
+        for (Table table : directory) {
+            for (int i = 0; table != null && i < TABLE_SIZE; i++) {
+                count += table.flags[i] >>> 1 & 1;
+            }
+        }
+        int[] dirty = new int[count];
+        count = 0;
+        for (int t = 0; t < directory.length; t++) {
+            for (int i = 0; directory[t] != null && i < TABLE_SIZE; i++) {
+                if ((directory[t].flags[i] & DIRTY) != 0) {
+                    dirty[count++] = t << TABLE_SHIFT | i;
+                }
+            }
+        }
+        return dirty;
+    }
+
+    boolean isPageDirty(int page) {
+        return page >>> TABLE_SHIFT < directory.length && (flags(page) & DIRTY) != 0;
+    }
+
+    void clearDirtyPages() {
+        for (Table table : directory) {
+            for (int i = 0; table != null && i < TABLE_SIZE; i++) {
+                table.flags[i] &= ~DIRTY;
+            }
+        }
+        flushWriteCache();
+    }
+
+    Watchpoints.Watchpoint watch(int address, int length, int kinds, Watchpoints.Handler handler) {
+        if (watchpoints == null) {
+            watchpoints = new Watchpoints();
+        }
+        Watchpoints.Watchpoint watchpoint = watchpoints.add(address, length, kinds, handler, this);
+        markWatched(watchpoint);
+        flushCaches();
+        return watchpoint;
+    }
+
+    void unwatch(Watchpoints.Watchpoint watchpoint) {
+        if (watchpoints == null || !watchpoints.remove(watchpoint)) {
+            return;
+        }
+        for (Table table : directory) {
+            for (int i = 0; table != null && i < TABLE_SIZE; i++) {
+                table.flags[i] &= ~WATCHED;
+            }
+        }
+        for (Watchpoints.Watchpoint other : watchpoints.all()) {
+            markWatched(other);
+        }
+        flushCaches();
+    }
+
+    private void markWatched(Watchpoints.Watchpoint watchpoint) {
+        int last = (int) ((Integer.toUnsignedLong(watchpoint.address) + watchpoint.length - 1) >>> PAGE_SHIFT);
+        for (int page = watchpoint.address >>> PAGE_SHIFT; page <= last; page++) {
+            table(page).flags[page & (TABLE_SIZE - 1)] |= WATCHED;
+        }
+    }
+
+    // First address where the two hold different bytes, -1 when they hold the same. Both have
+    // to be the same size.
+    long firstDifference(PagedMemory other) {
+        for (int t = 0; t < directory.length; t++) {
+            Table mine = directory[t];
+            Table theirs = other.directory[t];
+            for (int i = 0; i < TABLE_SIZE && (mine != null || theirs != null); i++) {
+                byte[] a = mine == null ? null : mine.frames[i];
+                byte[] b = theirs == null ? null : theirs.frames[i];
+                if (a == null && b == null) {
+                    continue;
+                }
+                int length = a != null ? a.length : b.length;
+                int index = Arrays.mismatch(a == null ? ZERO : a, 0, length, b == null ? ZERO : b, 0, length);
+                if (index >= 0) {
+                    return ((long) (t << TABLE_SHIFT | i) << PAGE_SHIFT) + index;
+                }
+            }
+        }
+        return -1;
+    }
+
+    byte byteAt(long address) {
+        byte[] frame = frame((int) (address >>> PAGE_SHIFT));
+        return frame == null ? 0 : frame[(int) (address & PAGE_MASK)];
+    }
+}
@@ -0,0 +1,277 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Estimates what a program would cost on a simple in-order core, for teaching and for comparing
+// routines. Attached as an ExecutionListener, so runs without it pay nothing: every retired
+// instruction adds its latency from the opcode table, every memory and stack access goes through
+// a two-level set-associative cache model, and conditional jumps and LOOPs go through a table of
+// 2-bit saturating counters. Misses and mispredictions add their penalties to the line that
+// caused them, and report() prints the totals and a per-line breakdown.
+class PerformanceModel implements ExecutionListener {
+    private static final Map<String, Integer> DEFAULT_LATENCIES = new HashMap<>();
+    private static final int STACK_TOP = 1 << 30; // PUSH/POP have no address here, model them up high
+
+    static {
+        for (String opcode : new String[]{"PRINT", "PRINT_REG", "PRINT_FLAG", "PRINT_MEM", "SHOW_STACK", "SHOW_DATA",
+                ".CODE", ".DATA", ".STACK", "OFFSET", "LENGTHOF", "SIZEOF"}) {
+            DEFAULT_LATENCIES.put(opcode, 0); // Host pseudo-instructions and directives
+        }
+        for (String opcode : new String[]{"XCHG", "CALL", "RET", "MOVSB", "MOVSW", "MOVSD", "SCASB", "SCASW", "SCASD"}) {
+            DEFAULT_LATENCIES.put(opcode, 2);
+        }
+        for (String opcode : new String[]{"CMPSB", "CMPSW", "CMPSD"}) {
+            DEFAULT_LATENCIES.put(opcode, 3);
+        }
+        for (String opcode : new String[]{"REP", "REPE", "REPZ", "REPNE", "REPNZ"}) {
+            DEFAULT_LATENCIES.put(opcode, 4); // Start-up cost, the elements are paid for in the caches
+        }
+        for (String opcode : new String[]{"LOOP", "LOOPZ", "LOOPE", "LOOPNZ", "LOOPNE"}) {
+            DEFAULT_LATENCIES.put(opcode, 5);
+        }
+        DEFAULT_LATENCIES.put("PMULLD", 10);
+        DEFAULT_LATENCIES.put("VPMULLD", 10);
+        DEFAULT_LATENCIES.put("SYSCALL", 100);
+        DEFAULT_LATENCIES.put("INT", 100);
+    }
+
+    // One level of set-associative cache with LRU replacement
+    static class Cache {
+        final String name;
+        final int lineSize;
+        final int sets;
+        final int ways;
+        final int missPenalty; // Cycles added when the next level has to be asked
+        private final long[] tags;
+        private final long[] lastUse;
+        private long clock;
+        long accesses;
+        long misses;
+
+        Cache(String name, int size, int lineSize, int ways, int missPenalty) {
+            this.name = name;
+            this.lineSize = lineSize;
+            this.ways = ways;
+            this.sets = size / lineSize / ways;
+            this.missPenalty = missPenalty;
+            tags = new long[sets * ways];
+            lastUse = new long[sets * ways];
+            Arrays.fill(tags, -1);
+        }
+
+        // Looks the memory line up and loads it on a miss, returns true on a hit
+        boolean access(long line) {
+            accesses++;
+            int base = (int) Math.floorMod(line, (long) sets) * ways;
+            int victim = base;
+            for (int way = base; way < base + ways; way++) {
+                if (tags[way] == line) {
+                    lastUse[way] = ++clock;
+                    return true;
+                }
+                if (lastUse[way] < lastUse[victim]) {
+                    victim = way;
+                }
+            }
+            misses++;
+            tags[victim] = line;
+            lastUse[victim] = ++clock;
+            return false;
+        }
+
+        void clear() {
+            Arrays.fill(tags, -1);
+            Arrays.fill(lastUse, 0);
+            clock = 0;
+            accesses = 0;
+            misses = 0;
+        }
+    }
+
+    private final Assembler assembler;
+    private final Map<String, Integer> latencies = new HashMap<>(DEFAULT_LATENCIES);
+    final Cache l1;
+    final Cache l2;
+    private final byte[] counters = new byte[1024]; // 2-bit branch counters, indexed by line
+    int mispredictPenalty = 15;
+
+    // Costs of the instruction being executed, given to its line when it retires
+    private long pendingCycles;
+    private int pendingL1Misses;
+    private int pendingL2Misses;
+    private int pendingBranches;
+    private int pendingMispredicts;
+
+    // Per line of the program
+    private long[] executions = new long[0];
+    private long[] cycles = new long[0];
+    private long[] l1Misses = new long[0];
+    private long[] l2Misses = new long[0];
+    private long[] branches = new long[0];
+    private long[] mispredicts = new long[0];
+
+    public PerformanceModel(Assembler assembler) {
+        // Small caches by default, guest memory is only a few KB
+        this(assembler, new Cache("L1", 512, 32, 2, 10), new Cache("L2", 4096, 64, 4, 100));
+    }
+
+    public PerformanceModel(Assembler assembler, Cache l1, Cache l2) {
+        this.assembler = assembler;
+        this.l1 = l1;
+        this.l2 = l2;
+        Arrays.fill(counters, (byte) 1); // Weakly not taken
+    }
+
+    public void attach() {
+        assembler.setListener(this);
+    }
+
+    public void detach() {
+        assembler.setListener(null);
+    }
+
+    public void setLatency(String opcode, int cycles) {
+        latencies.put(opcode.toUpperCase(), cycles);
+    }
+
+    private int latency(String opcode) {
+        Integer cycles = latencies.get(opcode);
+        return cycles != null ? cycles : 1;
+    }
+
+    @Override
+    public void onMemoryRead(int address, int length) {
+        access(Integer.toUnsignedLong(address), length); // Guest addresses are unsigned, see PagedMemory
+    }
+
+    @Override
+    public void onMemoryWrite(int address, int length) {
+        access(Integer.toUnsignedLong(address), length);
+    }
+
+    @Override
+    public void onStackAccess(int depth, boolean push) {
+        access(STACK_TOP - (depth + 1) * 4L, 4);
+    }
+
+    @Override
+    public void onCall(int fromLine, int targetLine) {
+        access(STACK_TOP - (assembler.cpu.returnAddressStack.size()) * 4L, 4);
+    }
+
+    @Override
+    public void onReturn(int fromLine, int returnLine) {
+        access(STACK_TOP - (assembler.cpu.returnAddressStack.size() + 1) * 4L, 4);
+    }
+
+    private void access(long address, int length) {
+        if (length <= 0) {
+            return;
+        }
+        long first = address / l1.lineSize;
+        long last = (address + length - 1) / l1.lineSize;
+        for (long line = first; line <= last; line++) {
+            if (!l1.access(line)) {
+                pendingL1Misses++;
+                pendingCycles += l1.missPenalty;
+                if (!l2.access(line * l1.lineSize / l2.lineSize)) {
+                    pendingL2Misses++;
+                    pendingCycles += l2.missPenalty;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onConditionalBranch(int line, boolean taken) {
+        int index = line & (counters.length - 1);
+        int counter = counters[index];
+        pendingBranches++;
+        if ((counter >= 2) != taken) {
+            pendingMispredicts++;
+            pendingCycles += mispredictPenalty;
+        }
+        counters[index] = (byte) (taken ? Math.min(counter + 1, 3) : Math.max(counter - 1, 0));
+    }
+
+    @Override
+    public void onInstructionRetired(int line, String instruction) {
+        Program program = assembler.program;
+        if (executions.length < program.size()) {
+            grow(program.size());
+        }
+        executions[line]++;
+        cycles[line] += latency(program.parts[line][0]) + pendingCycles;
+        l1Misses[line] += pendingL1Misses;
+        l2Misses[line] += pendingL2Misses;
+        branches[line] += pendingBranches;
+        mispredicts[line] += pendingMispredicts;
+        pendingCycles = 0;
+        pendingL1Misses = 0;
+        pendingL2Misses = 0;
+        pendingBranches = 0;
+        pendingMispredicts = 0;
+    }
+
+    private void grow(int size) {
+        executions = Arrays.copyOf(executions, size);
+        cycles = Arrays.copyOf(cycles, size);
+        l1Misses = Arrays.copyOf(l1Misses, size);
+        l2Misses = Arrays.copyOf(l2Misses, size);
+        branches = Arrays.copyOf(branches, size);
+        mispredicts = Arrays.copyOf(mispredicts, size);
+    }
+
+    public long totalCycles() {
+        long total = 0;
+        for (long lineCycles : cycles) {
+            total += lineCycles;
+        }
+        return total;
+    }
+
+    public void clear() {
+        l1.clear();
+        l2.clear();
+        Arrays.fill(counters, (byte) 1);
+        executions = new long[0];
+        grow(0);
+    }
+
+    public String report() {
+        long instructions = 0;
+        long totalBranches = 0;
+        long totalMispredicts = 0;
+        for (int line = 0; line < executions.length; line++) {
+            instructions += executions[line];
+            totalBranches += branches[line];
+            totalMispredicts += mispredicts[line];
+        }
+        long total = totalCycles();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Instructions: %d, estimated cycles: %d, IPC: %.2f%n", instructions, total,
+                total == 0 ? 0.0 : (double) instructions / total));
+        for (Cache cache : new Cache[]{l1, l2}) {
+            sb.append(String.format("%s: %d accesses, %d misses (%.1f%%)%n", cache.name, cache.accesses, cache.misses,
+                    percent(cache.misses, cache.accesses)));
+        }
+        sb.append(String.format("Branches: %d, mispredicted: %d (%.1f%%)%n", totalBranches, totalMispredicts,
+                percent(totalMispredicts, totalBranches)));
+        sb.append(String.format("%6s %10s %10s %8s %8s %9s %11s  %s%n", "Line", "Count", "Cycles", "L1 miss", "L2 miss",
+                "Branches", "Mispredicts", "Instruction"));
+        Program program = assembler.program;
+        for (int line = 0; line < executions.length; line++) {
+            if (executions[line] == 0) {
+                continue;
+            }
+            sb.append(String.format("%6d %10d %10d %8d %8d %9d %11d  %s%n", line, executions[line], cycles[line],
+                    l1Misses[line], l2Misses[line], branches[line], mispredicts[line],
+                    program != null && line < program.size() ? program.lines[line].trim() : ""));
+        }
+        return sb.toString();
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0.0 : 100.0 * part / whole;
+    }
+}
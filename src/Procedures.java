@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// MASM style procedures:
+//   name PROC
+//       ...
+//       RET
+//   name ENDP
+// The PROC line is the procedure's label, so CALL name works as it does for "name:", and the
+// ENDP line is blank to the engine. Procedures can not be nested and take no options such as
+// USES or LOCAL. A leaf procedure whose body has no labels, jumps, calls or thread switches,
+// ends in RET and has at most MAX_INLINE instructions is run in place at its call sites: the
+// engine executes the body lines straight after the CALL line without dispatching CALL, the
+// label or RET. The return address is still pushed and popped and the CALL and RET still count
+// against the iteration limit, so registers, stacks, counts and error lines stay as they were.
+class Procedures {
+    static final int MAX_INLINE = 16;
+
+    static class Procedure {
+        final String name;
+        final int start; // The PROC line
+        int end = -1; // The ENDP line
+        int[] body; // Instruction lines before the final RET, only for procedures run in place
+        int ret; // Line of that RET
+
+        Procedure(String name, int start) {
+            this.name = name;
+            this.start = start;
+        }
+    }
+
+    // Procedures in source order. Mistakes in the PROC/ENDP structure go to problems when it
+    // is not null; a procedure without an ENDP is left out.
+    static List<Procedure> find(Program program, List<Verifier.Problem> problems) {
+        List<Procedure> procedures = new ArrayList<>();
+        Procedure open = null;
+        for (int line = 0; line < program.size(); line++) {
+            if (program.parts[line] != null) {
+                continue;
+            }
+            String text = program.lines[line].trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            String[] instruction = Program.split(text);
+            String directive = Program.procedureDirective(instruction);
+            if (directive == null) {
+                continue;
+            }
+            String name = text.substring(0, instruction[0].length());
+            String problem = null;
+            if (directive.equals("PROC")) {
+                if (instruction.length > 2) {
+                    problem = "Syntax error: Unsupported PROC option " + instruction[2];
+                } else if (open != null) {
+                    problem = "Syntax error: PROC " + name + " inside PROC " + open.name;
+                }
+                open = new Procedure(name, line);
+            } else if (open == null) {
+                problem = "Syntax error: ENDP " + name + " without PROC";
+            } else if (!open.name.equals(name)) {
+                problem = "Syntax error: ENDP " + name + " does not close PROC " + open.name;
+            } else {
+                open.end = line;
+                procedures.add(open);
+                open = null;
+            }
+            if (problem != null && problems != null) {
+                problems.add(new Verifier.Problem(line, problem));
+            }
+        }
+        if (open != null && problems != null) {
+            problems.add(new Verifier.Problem(open.start, "Syntax error: PROC " + open.name + " has no ENDP"));
+        }
+        for (Procedure procedure : procedures) {
+            findBody(program, procedure);
+        }
+        return procedures;
+    }
+
+    private static void findBody(Program program, Procedure procedure) {
+        List<Integer> body = new ArrayList<>();
+        int ret = -1;
+        for (int line = procedure.start + 1; line < procedure.end; line++) {
+            String[] parts = program.parts[line];
+            if (parts == null) {
+                if (program.isLabel(line)) {
+                    return;
+                }
+                continue;
+            }
+            String op = parts[0].toUpperCase();
+            if (ret >= 0 || FlagLiveness.isBranch(op) || op.equals("JRCXZ") || op.equals("SPAWN")
+                    || op.equals("YIELD") || op.equals("JOIN") || body.size() == MAX_INLINE) {
+                return; // Not a leaf, or something after the RET
+            }
+            if (op.equals("RET")) {
+                ret = line;
+            } else {
+                body.add(line);
+            }
+        }
+        if (ret >= 0) {
+            procedure.body = body.stream().mapToInt(Integer::intValue).toArray();
+            procedure.ret = ret;
+        }
+    }
+
+    // The procedure to run in place for every CALL line, null for other lines. Empty when there
+    // is no such call.
+    static Procedure[] inlineCalls(Program program) {
+        Procedure[] calls = null;
+        List<Procedure> procedures = program.procedures();
+        for (int line = 0; line < program.size(); line++) {
+            String[] parts = program.parts[line];
+            if (parts == null || parts.length != 2 || !parts[0].equals("CALL")) {
+                continue;
+            }
+            Integer target = program.labels.get(parts[1]);
+            for (Procedure procedure : procedures) {
+                if (target != null && target == procedure.start && procedure.body != null) {
+                    if (calls == null) {
+                        calls = new Procedure[program.size()];
+                    }
+                    calls[line] = procedure;
+                }
+            }
+        }
+        return calls == null ? new Procedure[0] : calls;
+    }
+}
@@ -0,0 +1,373 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// A loaded program: the source lines, every instruction split into its parts once, and the labels.
+// Blank and label lines have null parts and are skipped by the engine; line numbers stay the
+// source line numbers so labels and error messages keep pointing at the right place.
+// Variable definitions in .DATA are pulled out into data and defined before the program starts.
+class Program {
+    String[] lines;
+    String[][] parts;
+    Map<String, Integer> labels;
+    String[][] data;
+    int[] dataLines;
+    int entry; // Line execution starts at, only not 0 for linked programs
+    String name = "program"; // Module or file name, what Metrics are kept under
+    Set<String> publics = new HashSet<>(); // Labels other modules may call, see ObjectModule
+    Set<String> externs = new HashSet<>();
+    private int[] flagLiveness; // Programs are not changed once built, so the analysis is kept
+    private LoopIdioms.Idiom[] loopIdioms;
+    private List<Verifier.Problem> problems;
+    private List<Procedures.Procedure> procedures;
+    private Procedures.Procedure[] inlineCalls;
+    private Map<String, MemoryOperand> memoryOperands;
+    private Program optimized;
+
+    Program(String[] lines, String[][] parts, Map<String, Integer> labels, String[][] data, int[] dataLines) {
+        this.lines = lines;
+        this.parts = parts;
+        this.labels = labels;
+        this.data = data;
+        this.dataLines = dataLines;
+    }
+
+    static Program parse(String code) {
+        String[] lines = code.split("\n");
+        String[][] parts = new String[lines.length][];
+        // Big sources are decoded in chunks on the common fork/join pool, see Chunk
+        Chunk chunk = lines.length <= CHUNK_LINES ? new Chunk(lines, parts, 0, lines.length)
+                : ForkJoinPool.commonPool().invoke(new DecodeTask(lines, parts, 0, lines.length));
+        // The source starts in the code segment, so data definitions not preceded by any segment
+        // directive stay instructions, which is where decode already put them
+        Program program = new Program(lines, parts, chunk.labels, chunk.data.toArray(new String[0][]),
+                chunk.dataLines.stream().mapToInt(Integer::intValue).toArray());
+        program.publics = chunk.publics;
+        program.externs = chunk.externs;
+        return program;
+    }
+
+    private static final int CHUNK_LINES = 16384;
+
+    // Labels, data definitions and directives of a range of lines. Whether a definition is data
+    // depends on the last .DATA/.CODE before it, which may be in an earlier chunk, so definitions
+    // before the chunk's first segment directive are left pending until the chunks are merged.
+    private static class Chunk {
+        final String[][] parts;
+        Map<String, Integer> labels = new HashMap<>();
+        List<String[]> data = new ArrayList<>();
+        List<Integer> dataLines = new ArrayList<>();
+        Set<String> publics = new HashSet<>();
+        Set<String> externs = new HashSet<>();
+        List<Integer> pending = new ArrayList<>(); // Definitions whose segment is not known yet
+        Boolean endsInData; // Segment at the end of the chunk, null when it has no directive
+
+        Chunk(String[] lines, String[][] parts, int from, int to) {
+            this.parts = parts;
+            for (int i = from; i < to; i++) {
+                String line = lines[i].trim();
+                if (line.isEmpty()) {
+                    continue; // Skip empty lines
+                }
+                if (line.endsWith(":")) {
+                    labels.put(line.substring(0, line.length() - 1), i);
+                    continue;
+                }
+                String[] instruction = split(line);
+                String directive = procedureDirective(instruction);
+                if (directive != null) {
+                    // "name PROC" is the procedure's label, see Procedures for the rest
+                    if (directive.equals("PROC")) {
+                        labels.put(line.substring(0, instruction[0].length()), i);
+                    }
+                    continue;
+                }
+                switch (instruction[0]) {
+                    case ".DATA":
+                        endsInData = true;
+                        break;
+                    case ".CODE":
+                    case ".STACK":
+                        endsInData = false;
+                        break;
+                    case "PUBLIC":
+                        addNames(publics, instruction);
+                        continue;
+                    case "EXTERN":
+                    case "EXTRN":
+                        addNames(externs, instruction);
+                        continue;
+                }
+                parts[i] = instruction;
+                if (instruction.length >= 3 && isDataType(instruction[1].toUpperCase()) && endsInData != Boolean.FALSE) {
+                    if (endsInData == null) {
+                        pending.add(i);
+                    } else {
+                        moveToData(i);
+                    }
+                }
+            }
+        }
+
+        private void moveToData(int line) {
+            data.add(parts[line]);
+            dataLines.add(line);
+            parts[line] = null;
+        }
+
+        // Appends the chunk that follows this one, in source order
+        Chunk merge(Chunk next) {
+            if (endsInData != null) {
+                List<String[]> ownData = next.data;
+                List<Integer> ownLines = next.dataLines;
+                next.data = new ArrayList<>();
+                next.dataLines = new ArrayList<>();
+                if (endsInData) {
+                    for (int line : next.pending) {
+                        next.moveToData(line);
+                    }
+                }
+                next.data.addAll(ownData);
+                next.dataLines.addAll(ownLines);
+            } else {
+                pending.addAll(next.pending);
+            }
+            labels.putAll(next.labels);
+            data.addAll(next.data);
+            dataLines.addAll(next.dataLines);
+            publics.addAll(next.publics);
+            externs.addAll(next.externs);
+            if (next.endsInData != null) {
+                endsInData = next.endsInData;
+            }
+            return this;
+        }
+    }
+
+    private static class DecodeTask extends RecursiveTask<Chunk> {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] lines;
+        private final String[][] parts;
+        private final int from;
+        private final int to;
+
+        DecodeTask(String[] lines, String[][] parts, int from, int to) {
+            this.lines = lines;
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Chunk compute() {
+            if (to - from <= CHUNK_LINES) {
+                return new Chunk(lines, parts, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            DecodeTask first = new DecodeTask(lines, parts, from, middle);
+            first.fork();
+            Chunk second = new DecodeTask(lines, parts, middle, to).compute();
+            return first.join().merge(second);
+        }
+    }
+
+    // Same as trim().split("\\s+|,\\s*") with the opcode uppercased, without the regex, which
+    // was most of the load time of big sources
+    static String[] split(String instruction) {
+        String line = instruction.trim();
+        List<String> parts = new ArrayList<>(4);
+        int start = 0;
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (isSpace(c) || c == ',') {
+                // A run of spaces, or a comma and the spaces after it
+                parts.add(line.substring(start, i));
+                i++;
+                while (i < line.length() && isSpace(line.charAt(i))) {
+                    i++;
+                }
+                start = i;
+            } else {
+                i++;
+            }
+        }
+        parts.add(line.substring(start));
+        // Trailing empty parts are dropped like String.split does
+        int size = parts.size();
+        while (size > 1 && parts.get(size - 1).isEmpty()) {
+            size--;
+        }
+        // "BYTE PTR [EBX]" is one operand, see MemoryOperand
+        for (int j = 1; j + 2 < size; j++) {
+            if (parts.get(j + 1).equalsIgnoreCase("PTR") && MemoryOperand.size(parts.get(j).toUpperCase()) > 0) {
+                parts.set(j, (parts.get(j) + " PTR " + parts.get(j + 2)).toUpperCase());
+                parts.subList(j + 1, j + 3).clear();
+                size -= 2;
+            }
+        }
+        String[] result = parts.subList(0, size).toArray(new String[0]);
+        result[0] = result[0].toUpperCase();
+        return result;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // Names after PUBLIC/EXTERN, MASM style "EXTERN name:PROC" is accepted too
+    private static void addNames(Set<String> names, String[] instruction) {
+        for (int i = 1; i < instruction.length; i++) {
+            String name = instruction[i];
+            int colon = name.indexOf(':');
+            names.add(colon < 0 ? name : name.substring(0, colon));
+        }
+    }
+
+    // PROC or ENDP for the lines that open and close a procedure, null for any other line
+    static String procedureDirective(String[] instruction) {
+        if (instruction.length < 2) {
+            return null;
+        }
+        String directive = instruction[1].toUpperCase();
+        return directive.equals("PROC") || directive.equals("ENDP") ? directive : null;
+    }
+
+    // Lines a jump can land on: "name:" and "name PROC"
+    boolean isLabel(int line) {
+        if (parts[line] != null) {
+            return false;
+        }
+        String text = lines[line].trim();
+        return text.endsWith(":") || "PROC".equals(procedureDirective(split(text)));
+    }
+
+    static boolean isDataType(String type) {
+        switch (type) {
+            case "BYTE":
+            case "SBYTE":
+            case "WORD":
+            case "SWORD":
+            case "DWORD":
+            case "SDWORD":
+            case "QWORD":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Same program with different instructions, used by the passes that rewrite code
+    Program withParts(String[][] parts) {
+        Program program = new Program(lines, parts, labels, data, dataLines);
+        program.entry = entry;
+        program.name = name;
+        program.publics = publics;
+        program.externs = externs;
+        return program;
+    }
+
+    // FlagLiveness.analyze, done once per program instead of on every run
+    int[] flagLiveness() {
+        int[] live = flagLiveness;
+        if (live == null) {
+            live = FlagLiveness.analyze(this);
+            flagLiveness = live;
+        }
+        return live;
+    }
+
+    // Optimizer.optimize, kept like the flag liveness so the optimized program's own analyses are
+    // kept with it too
+    Program optimized() {
+        Program program = optimized;
+        if (program == null) {
+            program = Optimizer.optimize(this);
+            optimized = program;
+        }
+        return program;
+    }
+
+    // Verifier.verify, kept like the flag liveness
+    List<Verifier.Problem> problems() {
+        List<Verifier.Problem> found = problems;
+        if (found == null) {
+            found = Verifier.verify(this);
+            problems = found;
+        }
+        return found;
+    }
+
+    // LoopIdioms.find, kept like the flag liveness
+    LoopIdioms.Idiom[] loopIdioms() {
+        LoopIdioms.Idiom[] idioms = loopIdioms;
+        if (idioms == null) {
+            idioms = LoopIdioms.find(this);
+            loopIdioms = idioms;
+        }
+        return idioms;
+    }
+
+    // Procedures.find, kept like the flag liveness
+    List<Procedures.Procedure> procedures() {
+        List<Procedures.Procedure> found = procedures;
+        if (found == null) {
+            found = Procedures.find(this, null);
+            procedures = found;
+        }
+        return found;
+    }
+
+    // Procedures.inlineCalls, null when no call can be run in place
+    Procedures.Procedure[] inlineCalls() {
+        Procedures.Procedure[] calls = inlineCalls;
+        if (calls == null) {
+            calls = Procedures.inlineCalls(this);
+            inlineCalls = calls;
+        }
+        return calls.length == 0 ? null : calls;
+    }
+
+    // Every memory operand of the program decoded, by its uppercased text
+    Map<String, MemoryOperand> memoryOperands() {
+        Map<String, MemoryOperand> decoded = memoryOperands;
+        if (decoded == null) {
+            decoded = new HashMap<>();
+            for (String[] instruction : parts) {
+                for (int i = 1; instruction != null && i < instruction.length; i++) {
+                    String operand = instruction[i].toUpperCase();
+                    MemoryOperand memory = MemoryOperand.decode(operand);
+                    if (memory != null) {
+                        decoded.put(operand, memory);
+                    }
+                }
+            }
+            memoryOperands = decoded;
+        }
+        return decoded;
+    }
+
+    int size() {
+        return lines.length;
+    }
+
+    int instructionCount() {
+        int count = 0;
+        for (String[] instruction : parts) {
+            if (instruction != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    String opcode(int line) {
+        return parts[line] == null ? null : parts[line][0];
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs a JASM routine once per input record, as a transform in a data pipeline. Records are either
+// fixed size or prefixed with a 4-byte little-endian length. For every record the VM is reset, the
+// record is put at address 0 with ESI pointing at it and ECX holding its length, and EDI points at
+// an output buffer in the upper half of memory. When the program ends EAX must hold the number of
+// bytes it left there, and those bytes are the output record (length prefixed again in that mode).
+// Records that fail or return a bad length are counted and dropped. The program is parsed once,
+// batches of records run on worker threads with one reused VM each, and output keeps input order.
+public class RecordProcessor {
+    private static final int BATCH = 256;
+    private static final byte[] TOO_LONG = new byte[0]; // Stands in for a record longer than half the memory
+
+    private final Program program;
+    private final int recordSize; // 0 for length-prefixed records
+    private final int memorySize;
+    private final int threads;
+    private final VMPool pool;
+    private final LongAdder failed = new LongAdder();
+
+    public RecordProcessor(Program program, int recordSize, int memorySize, int threads) {
+        this.program = program;
+        this.recordSize = recordSize;
+        this.memorySize = memorySize;
+        this.threads = threads;
+        pool = new VMPool(threads, memorySize);
+    }
+
+    // Processes every record of input and returns how many were read
+    public long process(InputStream input, OutputStream output) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        OutputStream out = new BufferedOutputStream(output, 1 << 16);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<byte[][]>> inFlight = new ArrayDeque<>();
+        long records = 0;
+        try {
+            while (true) {
+                List<byte[]> batch = readBatch(in);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                records += batch.size();
+                inFlight.add(workers.submit(() -> runBatch(batch)));
+                // Enough batches queued to keep every worker busy while the oldest one is written
+                if (inFlight.size() > threads * 2) {
+                    write(inFlight.poll().get(), out);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                write(inFlight.poll().get(), out);
+            }
+            out.flush();
+        } catch (ExecutionException e) {
+            throw new IOException("Record processing failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        return records;
+    }
+
+    private List<byte[]> readBatch(DataInputStream in) throws IOException {
+        List<byte[]> batch = new ArrayList<>(BATCH);
+        while (batch.size() < BATCH) {
+            byte[] record = readRecord(in);
+            if (record == null) {
+                break;
+            }
+            batch.add(record);
+        }
+        return batch;
+    }
+
+    // The next record, or null at the end of the input
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        int length = recordSize;
+        if (recordSize == 0) {
+            int first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            length = first | in.readUnsignedByte() << 8 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 24;
+            if (length < 0) {
+                throw new IOException("Invalid record length " + length);
+            }
+            if (length > memorySize / 2) {
+                // Could never fit the VM, so it fails like in runBatch, without allocating it first
+                skip(in, length);
+                return TOO_LONG;
+            }
+        }
+        byte[] record = new byte[length];
+        int read = in.readNBytes(record, 0, length);
+        if (read == 0 && recordSize != 0) {
+            return null;
+        }
+        if (read < length) {
+            throw new EOFException("Truncated record, " + read + " of " + length + " bytes");
+        }
+        return record;
+    }
+
+    // Reads past a record, skip() would not notice that the input ends first
+    private static void skip(DataInputStream in, int length) throws IOException {
+        byte[] scratch = new byte[8192];
+        int left = length;
+        while (left > 0) {
+            int read = in.read(scratch, 0, Math.min(left, scratch.length));
+            if (read < 0) {
+                throw new EOFException("Truncated record, " + (length - left) + " of " + length + " bytes");
+            }
+            left -= read;
+        }
+    }
+
+    private byte[][] runBatch(List<byte[]> batch) {
+        byte[][] results = new byte[batch.size()][];
+        int outputAddress = memorySize / 2;
+        JasmVM vm = pool.acquire();
+        try {
+            for (int i = 0; i < results.length; i++) {
+                byte[] record = batch.get(i);
+                if (record == TOO_LONG || record.length > outputAddress) {
+                    failed.increment();
+                    continue;
+                }
+                ExecutionResult result = vm.run(program, cpu -> {
+                    cpu.writeMemory(0, record, 0, record.length);
+                    cpu.setRegister("ESI", 0);
+                    cpu.setRegister("ECX", record.length);
+                    cpu.setRegister("EDI", outputAddress);
+                });
+                CPU cpu = vm.cpu();
+                int length = cpu.getRegister("EAX");
+                if (result.exitReason != ExecutionResult.ExitReason.COMPLETED || length < 0
+                        || !cpu.isMemoryRange(outputAddress, length)) {
+                    failed.increment();
+                    continue;
+                }
+                results[i] = new byte[length];
+                cpu.readMemory(outputAddress, results[i], 0, length);
+            }
+        } finally {
+            pool.release(vm);
+        }
+        return results;
+    }
+
+    private void write(byte[][] results, OutputStream out) throws IOException {
+        for (byte[] result : results) {
+            if (result == null) {
+                continue;
+            }
+            if (recordSize == 0) {
+                out.write(result.length);
+                out.write(result.length >> 8);
+                out.write(result.length >> 16);
+                out.write(result.length >> 24);
+            }
+            out.write(result);
+        }
+    }
+
+    public long failedRecords() {
+        return failed.sum();
+    }
+}
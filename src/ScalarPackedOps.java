@@ -0,0 +1,63 @@
+// Plain loop implementation, used when the Vector API is not available
+class ScalarPackedOps extends PackedOps {
+    @Override
+    void add(int[] a, int[] b, int[] dst, int lanes) {
+        for (int i = 0; i < lanes; i++) {
+            dst[i] = a[i] + b[i];
+        }
+    }
+
+    @Override
+    void sub(int[] a, int[] b, int[] dst, int lanes) {
+        for (int i = 0; i < lanes; i++) {
+            dst[i] = a[i] - b[i];
+        }
+    }
+
+    @Override
+    void mul(int[] a, int[] b, int[] dst, int lanes) {
+        for (int i = 0; i < lanes; i++) {
+            dst[i] = a[i] * b[i];
+        }
+    }
+
+    @Override
+    void and(int[] a, int[] b, int[] dst, int lanes) {
+        for (int i = 0; i < lanes; i++) {
+            dst[i] = a[i] & b[i];
+        }
+    }
+
+    @Override
+    void or(int[] a, int[] b, int[] dst, int lanes) {
+        for (int i = 0; i < lanes; i++) {
+            dst[i] = a[i] | b[i];
+        }
+    }
+
+    @Override
+    void xor(int[] a, int[] b, int[] dst, int lanes) {
+        for (int i = 0; i < lanes; i++) {
+            dst[i] = a[i] ^ b[i];
+        }
+    }
+
+    @Override
+    void compareEqual(int[] a, int[] b, int[] dst, int lanes) {
+        for (int i = 0; i < lanes; i++) {
+            dst[i] = a[i] == b[i] ? -1 : 0;
+        }
+    }
+
+    @Override
+    void compareGreater(int[] a, int[] b, int[] dst, int lanes) {
+        for (int i = 0; i < lanes; i++) {
+            dst[i] = a[i] > b[i] ? -1 : 0;
+        }
+    }
+
+    @Override
+    String name() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Shadow execution for rolling out a faster engine. Every program runs on the candidate VM
+// (optimizer and flag liveness on); a sampled fraction also runs on a reference VM that computes
+// every flag and executes the source as written, like the original interpreter. The two are
+// stepped one block at a time and compared after every taken branch: registers, the flags that
+// are still live, stacks, memory, vector registers and the output so far. When both finish
+// without an error the whole final state is compared, every flag included. A candidate block
+// can run loops in bulk and inline calls like a normal run does; the reference then runs the
+// blocks those stood for before they are compared, so the fast paths are checked too. The first difference
+// is handed to the reporter and the comparison stops there, the caller still gets the candidate's
+// result. Unsampled runs cost one random number. Not thread safe, use one runner per thread.
+public class ShadowRunner {
+    public static class Divergence {
+        public final int line; // Line the engines were about to run, or where they stopped
+        public final String diff; // Candidate state first, then the reference state
+
+        Divergence(int line, String diff) {
+            this.line = line;
+            this.diff = diff;
+        }
+
+        @Override
+        public String toString() {
+            return "Divergence before line " + line + ":\n" + diff;
+        }
+    }
+
+    private final JasmVM candidate;
+    private final JasmVM reference;
+    private final double sampleRate;
+    private final Consumer<Divergence> reporter;
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong diverged = new AtomicLong();
+
+    public ShadowRunner(double sampleRate) {
+        this(sampleRate, divergence -> System.err.println(divergence));
+    }
+
+    public ShadowRunner(double sampleRate, Consumer<Divergence> reporter) {
+        this.sampleRate = sampleRate;
+        this.reporter = reporter;
+        candidate = new JasmVM();
+        candidate.assembler().optimize = true;
+        reference = new JasmVM();
+        reference.assembler().flagAnalysis = false;
+    }
+
+    public ExecutionResult run(Program program) {
+        if (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return candidate.run(program);
+        }
+        sampled.incrementAndGet();
+        return compare(program);
+    }
+
+    // Runs both engines in lock step whatever the sample rate
+    public ExecutionResult compare(Program program) {
+        candidate.reset();
+        reference.reset();
+        long start = System.nanoTime();
+        Assembler fast = candidate.assembler();
+        Assembler slow = reference.assembler();
+        int line = fast.load(program);
+        int referenceLine = slow.load(program);
+        boolean reported = false;
+        while (true) {
+            if (fast.iterationLimitReached || slow.iterationLimitReached) {
+                // Removed lines make the candidate count fewer instructions, nothing to compare
+                break;
+            }
+            Divergence divergence = check(line, referenceLine);
+            if (divergence != null) {
+                report(divergence);
+                reported = true;
+                break;
+            }
+            if (line < 0) {
+                break;
+            }
+            // The candidate may run loops and calls in bulk, the reference catches up block by block
+            line = fast.runBlock(line, true);
+            referenceLine = slow.runBlock(referenceLine);
+            for (int i = fast.bulkBranches; i > 0 && referenceLine >= 0; i--) {
+                referenceLine = slow.runBlock(referenceLine);
+            }
+        }
+        if (!reported && line < 0 && !fast.iterationLimitReached && !slow.iterationLimitReached
+                && fast.errorLine < 0 && slow.errorLine < 0) {
+            // FlagLiveness keeps every flag live at the end, so the final states have to match fully
+            String state = fast.cpu.diff(slow.cpu, CPU.ALL_FLAGS);
+            if (state != null) {
+                report(new Divergence(program.size(), state));
+            }
+        }
+        // Whatever happened above, finish the candidate's run for the caller
+        while (line >= 0) {
+            line = fast.runBlock(line, true);
+        }
+        return candidate.result(System.nanoTime() - start);
+    }
+
+    private void report(Divergence divergence) {
+        diverged.incrementAndGet();
+        reporter.accept(divergence);
+    }
+
+    private Divergence check(int line, int referenceLine) {
+        Assembler fast = candidate.assembler();
+        Assembler slow = reference.assembler();
+        if (line != referenceLine) {
+            return new Divergence(referenceLine, "Next line: " + line + " vs " + referenceLine + "\n");
+        }
+        StringBuilder sb = new StringBuilder();
+        String output = candidate.output();
+        String referenceOutput = reference.output();
+        if (!output.equals(referenceOutput)) {
+            int at = 0;
+            while (at < output.length() && at < referenceOutput.length() && output.charAt(at) == referenceOutput.charAt(at)) {
+                at++;
+            }
+            sb.append("Output from character ").append(at).append(": ").append(output.substring(at))
+                    .append(" vs ").append(referenceOutput.substring(at)).append('\n');
+        }
+        if (fast.errorLine != slow.errorLine || fast.errorLine >= 0 && !String.valueOf(fast.errorMessage).equals(String.valueOf(slow.errorMessage))) {
+            sb.append("Error: line ").append(fast.errorLine).append(' ').append(fast.errorMessage)
+                    .append(" vs line ").append(slow.errorLine).append(' ').append(slow.errorMessage).append('\n');
+        }
+        // After an error the optimizer may have dropped a dead register write, so the CPU is only
+        // compared at real block boundaries here, the end of the run is compared by compare
+        if (line >= 0 && fast.errorLine < 0) {
+            String state = fast.cpu.diff(slow.cpu, liveIn(fast, line));
+            if (state != null) {
+                sb.append(state);
+            }
+        }
+        return sb.length() == 0 ? null : new Divergence(line, sb.toString());
+    }
+
+    // Flags the candidate still has to have right when it is about to run line
+    private static int liveIn(Assembler assembler, int line) {
+        String[] parts = assembler.program.parts[line];
+        int liveOut = assembler.flagLiveness[line];
+        if (parts == null) {
+            return liveOut;
+        }
+        return FlagLiveness.flagsRead(parts) | liveOut & ~FlagLiveness.flagsWritten(parts);
+    }
+
+    public long sampledCount() {
+        return sampled.get();
+    }
+
+    public long divergedCount() {
+        return diverged.get();
+    }
+}
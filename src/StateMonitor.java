@@ -0,0 +1,95 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+// Consistent views of a running VM for monitoring threads, see Assembler.monitor(). The executing
+// thread publishes its registers, flags, line and instruction count at block boundaries (taken
+// branches) and when the run ends, through a sequence lock: the sequence is odd while it writes
+// and even when it is done. snapshot() copies the fields and tries again if the sequence was odd
+// or moved on meanwhile, so readers never block or slow down the executing thread, and the
+// executing thread never waits for a reader.
+public class StateMonitor {
+    public static class Snapshot {
+        public final int[] registers; // In CPU.GENERAL_REGISTERS order
+        public final int flags;
+        public final int line; // Next line to run, or where the run stopped
+        public final long instructionsRetired;
+        public final boolean running;
+
+        Snapshot(int[] registers, int flags, int line, long instructionsRetired, boolean running) {
+            this.registers = registers;
+            this.flags = flags;
+            this.line = line;
+            this.instructionsRetired = instructionsRetired;
+            this.running = running;
+        }
+
+        public int getRegister(String name) {
+            return registers[Arrays.asList(CPU.GENERAL_REGISTERS).indexOf(name.toUpperCase())];
+        }
+
+        public boolean getFlag(String name) {
+            return (flags & CPU.flagBit(name.toUpperCase())) != 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(running ? "Running" : "Stopped");
+            sb.append(" at line ").append(line).append(", ").append(instructionsRetired).append(" instructions");
+            for (int i = 0; i < registers.length; i++) {
+                sb.append(", ").append(CPU.GENERAL_REGISTERS[i]).append('=').append(registers[i]);
+            }
+            return sb.append(", flags=").append(Integer.toHexString(flags)).toString();
+        }
+    }
+
+    private static final VarHandle SEQUENCE;
+
+    static {
+        try {
+            SEQUENCE = MethodHandles.lookup().findVarHandle(StateMonitor.class, "sequence", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @SuppressWarnings("unused") // Accessed through SEQUENCE
+    private long sequence;
+    private final int[] registers = new int[CPU.GENERAL_REGISTERS.length];
+    private int flags;
+    private int line;
+    private long instructionsRetired;
+    private boolean running;
+
+    // Only called by the thread running the program
+    void publish(CPU cpu, int line, long instructionsRetired, boolean running) {
+        long start = (long) SEQUENCE.getOpaque(this);
+        SEQUENCE.setOpaque(this, start + 1);
+        VarHandle.storeStoreFence();
+        cpu.copyRegisters(registers);
+        flags = cpu.flags;
+        this.line = line;
+        this.instructionsRetired = instructionsRetired;
+        this.running = running;
+        SEQUENCE.setRelease(this, start + 2);
+    }
+
+    public Snapshot snapshot() {
+        int[] copy = new int[registers.length];
+        while (true) {
+            long before = (long) SEQUENCE.getAcquire(this);
+            if ((before & 1) == 0) {
+                System.arraycopy(registers, 0, copy, 0, copy.length);
+                int flagsCopy = flags;
+                int lineCopy = line;
+                long retiredCopy = instructionsRetired;
+                boolean runningCopy = running;
+                VarHandle.loadLoadFence();
+                if ((long) SEQUENCE.getOpaque(this) == before) {
+                    return new Snapshot(copy, flagsCopy, lineCopy, retiredCopy, runningCopy);
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Host I/O for guest programs, Linux i386 style: SYSCALL (or INT 128) with the call number in EAX
+// and the arguments in EBX, ECX and EDX, the result comes back in EAX. Calls that fail return -1.
+//   3 read(fd, buffer, count)     4 write(fd, buffer, count)     5 open(path, flags, mode)
+//   6 close(fd)                  19 lseek(fd, offset, whence)
+// Files are FileChannels that read and write through a copy of the guest buffer; fd 0 is the VM's
+// input and fds 1 and 2 its output and System.err. Plain blocking calls, so a VM running on a
+// virtual thread (see VMPool.submit) only parks that thread while it waits.
+class Syscalls {
+    static final int READ = 3;
+    static final int WRITE = 4;
+    static final int OPEN = 5;
+    static final int CLOSE = 6;
+    static final int LSEEK = 19;
+
+    // Open flags, same values as Linux
+    static final int O_WRONLY = 1;
+    static final int O_RDWR = 2;
+    static final int O_CREAT = 64;
+    static final int O_TRUNC = 512;
+    static final int O_APPEND = 1024;
+
+    private static final int MAX_PATH = 4096;
+    private static final int CHUNK = 64 * 1024; // Bytes copied between memory and a stream at a time
+
+    private final Assembler assembler;
+    private FileChannel[] files = new FileChannel[8]; // Indexed by fd, 0-2 are the standard streams
+    Path root; // When set, open only reaches files under this directory
+
+    Syscalls(Assembler assembler) {
+        this.assembler = assembler;
+    }
+
+    void call(CPU cpu) throws Exception {
+        int number = cpu.getRegister("EAX");
+        int a = cpu.getRegister("EBX");
+        int b = cpu.getRegister("ECX");
+        int c = cpu.getRegister("EDX");
+        int result;
+        try {
+            switch (number) {
+                case READ:
+                    result = read(cpu, a, b, c);
+                    break;
+                case WRITE:
+                    result = write(cpu, a, b, c);
+                    break;
+                case OPEN:
+                    result = open(cpu, a, b);
+                    break;
+                case CLOSE:
+                    result = close(a);
+                    break;
+                case LSEEK:
+                    result = seek(a, b, c);
+                    break;
+                default:
+                    throw new Exception("Runtime error: Unknown syscall " + number);
+            }
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            result = -1;
+        }
+        cpu.setRegister("EAX", result);
+    }
+
+    private int read(CPU cpu, int fd, int address, int count) throws Exception {
+        checkRange(cpu, address, count);
+        FileChannel file = null;
+        if (fd != 0) {
+            file = file(fd);
+            if (file == null) {
+                return -1;
+            }
+        }
+        // Copied a chunk at a time, a count can be as large as the memory
+        byte[] bytes = new byte[Math.min(count, CHUNK)];
+        int total = 0;
+        while (total < count) {
+            int size = Math.min(count - total, bytes.length);
+            int read;
+            if (fd == 0) {
+                read = assembler.in.read(bytes, 0, size);
+            } else {
+                read = file.read(ByteBuffer.wrap(bytes, 0, size));
+            }
+            if (read <= 0) {
+                break; // End of input reads as 0 bytes, like a file
+            }
+            cpu.writeMemory(address + total, bytes, 0, read);
+            total += read;
+            if (read < size || (fd == 0 && assembler.in.available() == 0)) {
+                break; // Only what is there now, like a single read would return
+            }
+        }
+        return total;
+    }
+
+    private int write(CPU cpu, int fd, int address, int count) throws Exception {
+        checkRange(cpu, address, count);
+        FileChannel file = null;
+        if (fd != 1 && fd != 2) {
+            file = file(fd);
+            if (file == null) {
+                return -1;
+            }
+        }
+        byte[] bytes = new byte[Math.min(count, CHUNK)];
+        int written = 0;
+        while (written < count) {
+            int size = Math.min(count - written, bytes.length);
+            cpu.readMemory(address + written, bytes, 0, size);
+            if (file == null) {
+                (fd == 1 ? assembler.out() : System.err).write(bytes, 0, size);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, size);
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+            }
+            written += size;
+        }
+        return written;
+    }
+
+    private int open(CPU cpu, int pathAddress, int flags) throws Exception {
+        Path path = resolve(readPath(cpu, pathAddress));
+        if (path == null || Files.isDirectory(path)) {
+            return -1;
+        }
+        Set<OpenOption> options = new HashSet<>();
+        int access = flags & 3;
+        if (access != O_WRONLY) {
+            options.add(StandardOpenOption.READ);
+        }
+        if (access == O_WRONLY || access == O_RDWR) {
+            options.add(StandardOpenOption.WRITE);
+        }
+        if ((flags & O_CREAT) != 0) {
+            options.add(StandardOpenOption.CREATE);
+        }
+        if ((flags & O_TRUNC) != 0) {
+            options.add(StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        if ((flags & O_APPEND) != 0) {
+            options.add(StandardOpenOption.APPEND);
+        }
+        FileChannel file = FileChannel.open(path, options);
+        int fd = 3;
+        while (fd < files.length && files[fd] != null) {
+            fd++;
+        }
+        if (fd == files.length) {
+            files = Arrays.copyOf(files, files.length * 2);
+        }
+        files[fd] = file;
+        return fd;
+    }
+
+    private int close(int fd) throws IOException {
+        FileChannel file = file(fd);
+        if (file == null) {
+            return -1;
+        }
+        files[fd] = null;
+        file.close();
+        return 0;
+    }
+
+    private int seek(int fd, int offset, int whence) throws IOException {
+        FileChannel file = file(fd);
+        if (file == null) {
+            return -1;
+        }
+        long base = whence == 0 ? 0 : whence == 1 ? file.position() : file.size();
+        long position = base + offset;
+        if (whence < 0 || whence > 2 || position < 0 || position > Integer.MAX_VALUE) {
+            return -1;
+        }
+        file.position(position);
+        return (int) position;
+    }
+
+    private FileChannel file(int fd) {
+        return fd >= 3 && fd < files.length ? files[fd] : null;
+    }
+
+    private void checkRange(CPU cpu, int address, int count) throws Exception {
+        if (count < 0 || !cpu.isMemoryRange(address, count)) {
+            throw new Exception("Runtime error: Buffer out of memory range at address " + address);
+        }
+    }
+
+    // Zero-terminated path in guest memory
+    private String readPath(CPU cpu, int address) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = address; ; i++) {
+            if (!cpu.isMemoryRange(i, 1) || sb.length() > MAX_PATH) {
+                throw new Exception("Runtime error: Unterminated path at address " + address);
+            }
+            int c = cpu.getMemory(i, 1);
+            if (c == 0) {
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+    }
+
+    private Path resolve(String name) {
+        if (root == null) {
+            return Paths.get(name);
+        }
+        Path path = root.resolve(name).normalize();
+        return path.startsWith(root.normalize()) ? path : null;
+    }
+
+    // Closes every file the program left open, the standard streams stay as they are
+    void closeAll() {
+        for (int fd = 3; fd < files.length; fd++) {
+            if (files[fd] != null) {
+                try {
+                    files[fd].close();
+                } catch (IOException e) {
+                    // Nothing to report to, the program is already done
+                }
+                files[fd] = null;
+            }
+        }
+    }
+}
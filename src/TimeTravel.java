@@ -0,0 +1,475 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+// Reverse execution for the Debugger. While it records, every instruction the hooked loop runs
+// leaves an undo entry with what it overwrote: the flags, the general and vector registers it
+// changed, the old bytes of its memory writes, the variable it set and what it pushed or
+// popped. The records are ints in a log and end with their kind, so the log can be walked
+// backwards; stepping back one instruction puts back one entry.
+//
+// Every interval instructions a new segment starts with a checkpoint, a copy of the registers,
+// flags, vector registers and both stacks. Going back over a whole segment only has to put back
+// its memory and variable writes and then load the checkpoint. The history is kept to about
+// window bytes by dropping the oldest segments.
+//
+// Output and file positions are not undone, and the history starts over after an instruction
+// that switched guest threads, or when the next run starts.
+class TimeTravel {
+    static final int DEFAULT_INTERVAL = 1024;
+    static final long DEFAULT_WINDOW = 16L << 20;
+
+    // Record kinds, each the last int of its record
+    private static final int REGISTER = 1; // Index in GENERAL_REGISTERS, old value
+    private static final int PUSH = 2;
+    private static final int POP = 3; // Popped value
+    private static final int CALL = 4;
+    private static final int RETURN = 5; // Popped return line
+    private static final int MEMORY = 6; // Address, length, offset of the old bytes
+    private static final int VECTOR = 7; // Index, 8 old lanes
+    private static final int VARIABLE = 8; // Index in variables, high and low half of the old value
+
+    // The last write of an address, see lastWrite
+    static class Write {
+        final int line;
+        final int instruction; // How many instructions ran before it
+        final int address;
+        final int length;
+
+        Write(int line, int instruction, int address, int length) {
+            this.line = line;
+            this.instruction = instruction;
+            this.address = address;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + line + ", instruction " + instruction + ", " + address + ".." + (address + length - 1);
+        }
+    }
+
+    private static class Segment {
+        // The checkpoint, the state before the first instruction of the segment
+        final int[] registers = new int[CPU.GENERAL_REGISTERS.length];
+        final int[][] vectors;
+        final int[] stack;
+        final int[] returns;
+        // One entry per instruction, its records end at ends[i] in changes
+        int entries;
+        int[] lines = new int[64];
+        int[] iterations = new int[64];
+        int[] flags = new int[64];
+        int[] ends = new int[64];
+        int[] changes = new int[256];
+        int changeCount;
+        byte[] bytes = new byte[256];
+        int byteCount;
+        final List<Variable> variables = new ArrayList<>();
+
+        Segment(CPU cpu) {
+            cpu.copyRegisters(registers);
+            vectors = new int[cpu.vectorRegisters.length][];
+            for (int i = 0; i < vectors.length; i++) {
+                vectors[i] = cpu.vectorRegisters[i].clone();
+            }
+            stack = toArray(cpu.stack);
+            returns = toArray(cpu.returnAddressStack);
+        }
+
+        // Roughly what the segment holds on to
+        long size() {
+            return 16L * entries + 4L * changeCount + byteCount + 4L * (stack.length + returns.length) + 300;
+        }
+
+        void record(int kind) {
+            room(1);
+            changes[changeCount++] = kind;
+        }
+
+        void record(int a, int kind) {
+            room(2);
+            changes[changeCount++] = a;
+            changes[changeCount++] = kind;
+        }
+
+        void record(int a, int b, int kind) {
+            room(3);
+            changes[changeCount++] = a;
+            changes[changeCount++] = b;
+            changes[changeCount++] = kind;
+        }
+
+        void record(int a, int b, int c, int kind) {
+            room(4);
+            changes[changeCount++] = a;
+            changes[changeCount++] = b;
+            changes[changeCount++] = c;
+            changes[changeCount++] = kind;
+        }
+
+        void recordVector(int index, int[] lanes) {
+            room(10);
+            changes[changeCount++] = index;
+            System.arraycopy(lanes, 0, changes, changeCount, 8);
+            changeCount += 8;
+            changes[changeCount++] = VECTOR;
+        }
+
+        private void room(int count) {
+            if (changeCount + count > changes.length) {
+                changes = Arrays.copyOf(changes, changes.length * 2);
+            }
+        }
+
+        void add(int line, int iteration, int flag) {
+            if (entries == lines.length) {
+                lines = Arrays.copyOf(lines, entries * 2);
+                iterations = Arrays.copyOf(iterations, entries * 2);
+                flags = Arrays.copyOf(flags, entries * 2);
+                ends = Arrays.copyOf(ends, entries * 2);
+            }
+            lines[entries] = line;
+            iterations[entries] = iteration;
+            flags[entries] = flag;
+            ends[entries++] = changeCount;
+        }
+
+        int start(int entry) {
+            return entry == 0 ? 0 : ends[entry - 1];
+        }
+    }
+
+    private final Assembler assembler;
+    private final int interval;
+    private final long window;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long olderBytes; // Size of every segment but the newest
+    private boolean open; // An instruction started and has not retired, it failed if the run is over
+    private int openLine;
+    private int openIteration;
+    private int openFlags;
+    private int openReturns; // Size and top of the return address stack when it started
+    private int openReturnTop;
+    private IntStack stackSeen; // The stacks of the guest thread being recorded
+    private IntStack returnsSeen;
+    private final int[] before = new int[CPU.GENERAL_REGISTERS.length];
+    private final int[] after = new int[CPU.GENERAL_REGISTERS.length];
+
+    TimeTravel(Assembler assembler, int interval, long window) {
+        this.assembler = assembler;
+        this.interval = Math.max(interval, 1);
+        this.window = window;
+    }
+
+    void clear() {
+        segments.clear();
+        olderBytes = 0;
+        open = false;
+    }
+
+    void start(int line) {
+        CPU cpu = assembler.cpu;
+        Segment segment = segments.peekLast();
+        if (open || cpu.stack != stackSeen || cpu.returnAddressStack != returnsSeen
+                || (segment != null && segment.entries > 0
+                && segment.iterations[segment.entries - 1] >= assembler.iterationCount)) {
+            clear(); // A new run or another guest thread, the history does not lead here
+            segment = null;
+        }
+        stackSeen = cpu.stack;
+        returnsSeen = cpu.returnAddressStack;
+        if (segment == null || segment.entries >= interval || segment.size() > window / 4) {
+            segment = checkpoint();
+        }
+        open = true;
+        openLine = line;
+        openIteration = assembler.iterationCount;
+        openFlags = cpu.flags;
+        cpu.copyRegisters(before);
+        openReturns = cpu.returnAddressStack.size();
+        openReturnTop = openReturns > 0 ? cpu.returnAddressStack.peek() : 0;
+        String[] parts = assembler.program.parts[line];
+        if (parts.length > 1 && parts[1].length() == 4 && CPU.isVectorRegister(parts[1].toUpperCase())) {
+            int index = parts[1].charAt(3) - '0';
+            segment.recordVector(index, cpu.vectorRegisters[index]);
+        }
+        if (parts.length > 1 && !assembler.variables.isEmpty()) {
+            Variable variable = assembler.variables.get(parts[1]);
+            if (variable == null) {
+                variable = assembler.variables.get(parts[1].toUpperCase());
+            }
+            if (variable != null) {
+                segment.variables.add(variable);
+                segment.record(segment.variables.size() - 1, (int) (variable.value >> 32), (int) variable.value, VARIABLE);
+            }
+        }
+    }
+
+    void retired() {
+        if (!open) {
+            return;
+        }
+        CPU cpu = assembler.cpu;
+        if (cpu.stack != stackSeen || cpu.returnAddressStack != returnsSeen) {
+            clear(); // Switched guest threads, which can not be undone
+            return;
+        }
+        close();
+    }
+
+    private void close() {
+        CPU cpu = assembler.cpu;
+        Segment segment = segments.peekLast();
+        cpu.copyRegisters(after);
+        for (int i = 0; i < after.length; i++) {
+            if (after[i] != before[i]) {
+                segment.record(i, before[i], REGISTER);
+            }
+        }
+        int returns = cpu.returnAddressStack.size();
+        if (returns == openReturns + 1) {
+            segment.record(CALL);
+        } else if (returns == openReturns - 1) {
+            segment.record(openReturnTop, RETURN);
+        }
+        segment.add(openLine, openIteration, openFlags);
+        open = false;
+    }
+
+    void memoryWrite(int address, int length) {
+        CPU cpu = assembler.cpu;
+        if (!open || length <= 0 || !cpu.isMemoryRange(address, length)) {
+            return; // A write outside memory fails without writing
+        }
+        Segment segment = segments.peekLast();
+        if (segment.byteCount + length > segment.bytes.length) {
+            segment.bytes = Arrays.copyOf(segment.bytes, Math.max(segment.bytes.length * 2, segment.byteCount + length));
+        }
+        cpu.peekMemory(address, segment.bytes, segment.byteCount, length);
+        segment.record(address, length, segment.byteCount, MEMORY);
+        segment.byteCount += length;
+    }
+
+    void stackAccess(int depth, boolean push) {
+        if (open) {
+            Segment segment = segments.peekLast();
+            if (push) {
+                segment.record(PUSH);
+            } else {
+                segment.record(assembler.cpu.stack.get(depth), POP);
+            }
+        }
+    }
+
+    // Puts the CPU back to before the last recorded instruction. Returns its line, or -1 when
+    // there is no history.
+    int stepBack() {
+        finishFailed();
+        Segment segment = segments.peekLast();
+        if (segment == null) {
+            return -1;
+        }
+        int line = undoEntry(segment);
+        if (segment.entries == 0) {
+            dropNewest();
+        }
+        return line;
+    }
+
+    // Goes back to the last time one of lines was about to run, or to the start of the history.
+    // Returns the line it stopped at, or -1 when there is no history.
+    int backTo(Set<Integer> lines) {
+        finishFailed();
+        Segment target = null;
+        int entry = -1;
+        for (Iterator<Segment> it = segments.descendingIterator(); it.hasNext() && target == null; ) {
+            Segment segment = it.next();
+            for (int i = segment.entries - 1; i >= 0; i--) {
+                if (lines.contains(segment.lines[i])) {
+                    target = segment;
+                    entry = i;
+                    break;
+                }
+            }
+        }
+        int line = -1;
+        while (!segments.isEmpty() && segments.peekLast() != target) {
+            line = undoSegment(segments.peekLast());
+        }
+        if (target != null) {
+            while (target.entries > entry) {
+                line = undoEntry(target);
+            }
+            if (target.entries == 0) {
+                dropNewest();
+            }
+        }
+        return line;
+    }
+
+    // Where the byte at address was last written within the history, null if it was not
+    Write lastWrite(int address) {
+        finishFailed();
+        long wanted = Integer.toUnsignedLong(address);
+        for (Iterator<Segment> it = segments.descendingIterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            int[] c = segment.changes;
+            for (int i = segment.entries - 1; i >= 0; i--) {
+                for (int at = segment.ends[i]; at > segment.start(i); at -= length(c[at - 1])) {
+                    if (c[at - 1] == MEMORY) {
+                        int start = at - 4;
+                        long from = Integer.toUnsignedLong(c[start]);
+                        if (wanted >= from && wanted < from + c[start + 1]) {
+                            return new Write(segment.lines[i], segment.iterations[i], c[start], c[start + 1]);
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    // The run ended on an error: the instruction that failed is the first one to step back over
+    private void finishFailed() {
+        if (open) {
+            close();
+        }
+    }
+
+    private Segment checkpoint() {
+        Segment finished = segments.peekLast();
+        if (finished != null) {
+            olderBytes += finished.size();
+        }
+        while (olderBytes > window && !segments.isEmpty()) {
+            olderBytes -= segments.pollFirst().size();
+        }
+        Segment segment = new Segment(assembler.cpu);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void dropNewest() {
+        segments.pollLast();
+        if (!segments.isEmpty()) {
+            olderBytes -= segments.peekLast().size();
+        }
+    }
+
+    private int undoEntry(Segment segment) {
+        CPU cpu = assembler.cpu;
+        int entry = --segment.entries;
+        cpu.copyRegisters(after);
+        undo(segment, segment.start(entry), segment.ends[entry], true);
+        cpu.loadRegisters(after);
+        segment.changeCount = segment.start(entry);
+        cpu.flags = segment.flags[entry];
+        assembler.iterationCount = segment.iterations[entry];
+        return segment.lines[entry];
+    }
+
+    // Back to the checkpoint, the registers and stacks come from it and need no undoing
+    private int undoSegment(Segment segment) {
+        CPU cpu = assembler.cpu;
+        undo(segment, 0, segment.changeCount, false);
+        cpu.loadRegisters(segment.registers);
+        for (int i = 0; i < segment.vectors.length; i++) {
+            System.arraycopy(segment.vectors[i], 0, cpu.vectorRegisters[i], 0, segment.vectors[i].length);
+        }
+        load(cpu.stack, segment.stack);
+        load(cpu.returnAddressStack, segment.returns);
+        cpu.flags = segment.flags[0];
+        assembler.iterationCount = segment.iterations[0];
+        dropNewest();
+        return segment.lines[0];
+    }
+
+    // Puts back the records from the newest down to from. The general registers go into after,
+    // only memory and variables are put back when all is false.
+    private void undo(Segment segment, int from, int to, boolean all) {
+        CPU cpu = assembler.cpu;
+        int[] c = segment.changes;
+        int at = to;
+        while (at > from) {
+            int kind = c[at - 1];
+            at -= length(kind);
+            switch (kind) {
+                case REGISTER:
+                    if (all) {
+                        after[c[at]] = c[at + 1];
+                    }
+                    break;
+                case PUSH:
+                    if (all) {
+                        cpu.stack.pop();
+                    }
+                    break;
+                case POP:
+                    if (all) {
+                        cpu.stack.push(c[at]);
+                    }
+                    break;
+                case CALL:
+                    if (all) {
+                        cpu.returnAddressStack.pop();
+                    }
+                    break;
+                case RETURN:
+                    if (all) {
+                        cpu.returnAddressStack.push(c[at]);
+                    }
+                    break;
+                case MEMORY:
+                    cpu.restoreMemory(c[at], segment.bytes, c[at + 2], c[at + 1]);
+                    segment.byteCount = c[at + 2];
+                    break;
+                case VECTOR:
+                    if (all) {
+                        System.arraycopy(c, at + 1, cpu.vectorRegisters[c[at]], 0, 8);
+                    }
+                    break;
+                case VARIABLE:
+                    segment.variables.remove(c[at]).value = (long) c[at + 1] << 32 | c[at + 2] & 0xFFFFFFFFL;
+                    break;
+                default:
+                    throw new IllegalStateException("Bad undo record " + kind);
+            }
+        }
+    }
+
+    private static int length(int kind) {
+        switch (kind) {
+            case REGISTER:
+                return 3;
+            case POP:
+            case RETURN:
+                return 2;
+            case MEMORY:
+            case VARIABLE:
+                return 4;
+            case VECTOR:
+                return 10;
+            default:
+                return 1;
+        }
+    }
+
+    private static int[] toArray(IntStack stack) {
+        int[] values = new int[stack.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = stack.get(i);
+        }
+        return values;
+    }
+
+    private static void load(IntStack stack, int[] values) {
+        stack.clear();
+        for (int value : values) {
+            stack.push(value);
+        }
+    }
+}
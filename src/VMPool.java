@@ -0,0 +1,67 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+// Keeps warm JasmVM instances for services that run many short programs. acquire() never
+// blocks: when the pool is empty a new VM is made, and release() drops VMs beyond capacity.
+public class VMPool {
+    private final ArrayBlockingQueue<JasmVM> idle;
+    private final int memorySize;
+    private final Metrics metrics;
+
+    public VMPool(int capacity, int memorySize) {
+        this(capacity, memorySize, null);
+    }
+
+    // Every VM of the pool records its runs into metrics
+    public VMPool(int capacity, int memorySize, Metrics metrics) {
+        this.metrics = metrics;
+        idle = new ArrayBlockingQueue<>(capacity);
+        this.memorySize = memorySize;
+        for (int i = 0; i < capacity; i++) {
+            idle.offer(newVM());
+        }
+    }
+
+    public JasmVM acquire() {
+        JasmVM vm = idle.poll();
+        return vm != null ? vm : newVM();
+    }
+
+    private JasmVM newVM() {
+        JasmVM vm = new JasmVM(memorySize);
+        vm.setMetrics(metrics);
+        return vm;
+    }
+
+    public void release(JasmVM vm) {
+        vm.reset();
+        idle.offer(vm);
+    }
+
+    public ExecutionResult run(Program program) {
+        JasmVM vm = acquire();
+        try {
+            return vm.run(program);
+        } finally {
+            release(vm);
+        }
+    }
+
+    // Runs the program on a new virtual thread, so a program blocked in a syscall only parks its
+    // own thread and thousands of I/O-bound programs can share a few carrier threads
+    public CompletableFuture<ExecutionResult> submit(Program program) {
+        CompletableFuture<ExecutionResult> result = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                result.complete(run(program));
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    public int idleCount() {
+        return idle.size();
+    }
+}
@@ -0,0 +1,85 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Vector API implementation, only loaded by PackedOps when jdk.incubator.vector is present
+class VectorPackedOps extends PackedOps {
+    // Use the host's preferred width, but never wider than one register so XMM ops stay a single vector
+    private static final VectorSpecies<Integer> XMM_SPECIES = IntVector.SPECIES_128;
+    private static final VectorSpecies<Integer> YMM_SPECIES =
+            IntVector.SPECIES_PREFERRED.length() >= 8 ? IntVector.SPECIES_256 : IntVector.SPECIES_PREFERRED;
+
+    VectorPackedOps() {
+        if (IntVector.SPECIES_PREFERRED.vectorBitSize() < 128) {
+            // No SIMD on this host, the scalar loops are faster than emulated vectors
+            throw new UnsupportedOperationException("No 128-bit vector support");
+        }
+    }
+
+    // Register lane counts (4 or 8) are always a multiple of the species length
+    private static VectorSpecies<Integer> species(int lanes) {
+        return lanes <= 4 ? XMM_SPECIES : YMM_SPECIES;
+    }
+
+    private static void lanewise(VectorOperators.Binary op, int[] a, int[] b, int[] dst, int lanes) {
+        VectorSpecies<Integer> species = species(lanes);
+        for (int i = 0; i < lanes; i += species.length()) {
+            IntVector.fromArray(species, a, i).lanewise(op, IntVector.fromArray(species, b, i)).intoArray(dst, i);
+        }
+    }
+
+    private static void compare(VectorOperators.Comparison op, int[] a, int[] b, int[] dst, int lanes) {
+        VectorSpecies<Integer> species = species(lanes);
+        IntVector ones = IntVector.broadcast(species, -1);
+        IntVector zero = IntVector.zero(species);
+        for (int i = 0; i < lanes; i += species.length()) {
+            IntVector left = IntVector.fromArray(species, a, i);
+            zero.blend(ones, left.compare(op, IntVector.fromArray(species, b, i))).intoArray(dst, i);
+        }
+    }
+
+    @Override
+    void add(int[] a, int[] b, int[] dst, int lanes) {
+        lanewise(VectorOperators.ADD, a, b, dst, lanes);
+    }
+
+    @Override
+    void sub(int[] a, int[] b, int[] dst, int lanes) {
+        lanewise(VectorOperators.SUB, a, b, dst, lanes);
+    }
+
+    @Override
+    void mul(int[] a, int[] b, int[] dst, int lanes) {
+        lanewise(VectorOperators.MUL, a, b, dst, lanes);
+    }
+
+    @Override
+    void and(int[] a, int[] b, int[] dst, int lanes) {
+        lanewise(VectorOperators.AND, a, b, dst, lanes);
+    }
+
+    @Override
+    void or(int[] a, int[] b, int[] dst, int lanes) {
+        lanewise(VectorOperators.OR, a, b, dst, lanes);
+    }
+
+    @Override
+    void xor(int[] a, int[] b, int[] dst, int lanes) {
+        lanewise(VectorOperators.XOR, a, b, dst, lanes);
+    }
+
+    @Override
+    void compareEqual(int[] a, int[] b, int[] dst, int lanes) {
+        compare(VectorOperators.EQ, a, b, dst, lanes);
+    }
+
+    @Override
+    void compareGreater(int[] a, int[] b, int[] dst, int lanes) {
+        compare(VectorOperators.GT, a, b, dst, lanes);
+    }
+
+    @Override
+    String name() {
+        return "vector " + YMM_SPECIES;
+    }
+}
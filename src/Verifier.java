@@ -0,0 +1,464 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Checks a whole program before it runs: operand counts, operand kinds, register sizes, labels,
+// PROC/ENDP pairs and data definitions. Every problem is collected with its line, so a program is rejected with
+// all of its errors at once, and the handlers in Assembler can take their operands as valid.
+// Only what depends on the run is left to them: memory bounds, stack underflow, thread ids and
+// interrupt numbers held in registers. Variables are the ones the data segment defines, the
+// segment of a code line is the one the directives above it select.
+class Verifier {
+    static class Problem {
+        final int line;
+        final String message;
+
+        Problem(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + line + ": " + message;
+        }
+    }
+
+    private final Map<String, Integer> labels;
+    private final Set<String> variables;
+
+    Verifier(Map<String, Integer> labels, Set<String> variables) {
+        this.labels = labels;
+        this.variables = variables;
+    }
+
+    static List<Problem> verify(Program program) {
+        List<Problem> problems = new ArrayList<>();
+        Set<String> variables = new HashSet<>();
+        for (int i = 0; i < program.data.length; i++) {
+            String problem = checkDefinition(program.data[i]);
+            if (problem != null) {
+                problems.add(new Problem(program.dataLines[i], problem));
+            } else {
+                define(variables, program.data[i]);
+            }
+        }
+        // Definitions left in the code are made when they run, in a .DATA segment
+        boolean inData = false;
+        for (String[] parts : program.parts) {
+            if (parts != null) {
+                String opcode = parts[0].toUpperCase();
+                if (opcode.equals(".DATA") || opcode.equals(".CODE") || opcode.equals(".STACK")) {
+                    inData = opcode.equals(".DATA");
+                } else if (inData && !isOpcode(opcode) && checkDefinition(parts) == null) {
+                    define(variables, parts);
+                }
+            }
+        }
+        Verifier verifier = new Verifier(program.labels, variables);
+        inData = false;
+        for (int line = 0; line < program.size(); line++) {
+            String[] parts = program.parts[line];
+            if (parts == null) {
+                continue;
+            }
+            String opcode = parts[0].toUpperCase();
+            if (opcode.equals(".DATA") || opcode.equals(".CODE") || opcode.equals(".STACK")) {
+                inData = opcode.equals(".DATA");
+            }
+            String problem = verifier.check(parts, inData);
+            if (problem != null) {
+                problems.add(new Problem(line, problem));
+            }
+        }
+        Procedures.find(program, problems);
+        problems.sort((a, b) -> Integer.compare(a.line, b.line));
+        return problems;
+    }
+
+    private static void define(Set<String> variables, String[] parts) {
+        String name = parts[0].toUpperCase();
+        if (parts.length > 3) {
+            for (int i = 0; i < parts.length - 2; i++) {
+                variables.add(name + "[" + i + "]");
+            }
+        } else {
+            variables.add(name);
+        }
+    }
+
+    // What is wrong with one instruction, null when nothing is. inData is whether it is in a
+    // .DATA segment, where anything that is not an instruction defines a variable.
+    String check(String[] parts, boolean inData) {
+        String problem = checkOperands(parts, inData);
+        return problem != null ? problem : checkPtrSizes(parts);
+    }
+
+    private String checkOperands(String[] parts, boolean inData) {
+        String opcode = parts[0].toUpperCase();
+        int operands = parts.length - 1;
+        switch (opcode) {
+            case "MOV":
+                return binary(parts, opcode, REGISTER | VARIABLE | INDIRECT, REGISTER | VARIABLE | NUMBER | INDIRECT, true);
+            case "ADD":
+                return binary(parts, opcode, REGISTER | VARIABLE | INDIRECT, REGISTER | VARIABLE | NUMBER, true);
+            case "SUB":
+            case "XCHG":
+                return binary(parts, opcode, REGISTER | VARIABLE, REGISTER | VARIABLE | NUMBER, true);
+            case "OR":
+            case "AND":
+            case "XOR":
+                // Mixed sizes have always been allowed here, the result is cut to the destination
+                return binary(parts, opcode, REGISTER, VALUE, false);
+            case "TEST":
+            case "CMP":
+                return binary(parts, opcode, VALUE, VALUE, false);
+            case "MOVSX":
+            case "MOVZX": {
+                if (operands != 2) {
+                    return operandCount(opcode);
+                }
+                String dest = parts[1].toUpperCase();
+                String src = parts[2].toUpperCase();
+                if (!is(dest, REGISTER) || !is(src, REGISTER | VARIABLE | INDIRECT)) {
+                    return invalid("", opcode);
+                }
+                int destSize = Assembler.getRegisterSize(dest);
+                MemoryOperand memory = MemoryOperand.decode(src);
+                if (memory != null && memory.size == 0) {
+                    return "Syntax error: " + opcode + " needs BYTE PTR or WORD PTR for a memory source";
+                }
+                int srcSize = memory != null ? memory.size * 8 : Assembler.getRegisterSize(src);
+                if (!(destSize == 32 && srcSize < 32 || destSize == 16 && srcSize == 8)) {
+                    return "Syntax error: Size mismatch between source and destination registers for " + opcode + " operation";
+                }
+                return null;
+            }
+            case "NEG":
+            case "INC":
+            case "DEC":
+            case "POP":
+                if (operands != 1) {
+                    return operandCount(opcode);
+                }
+                return is(parts[1].toUpperCase(), REGISTER | VARIABLE) ? null : invalid("", opcode);
+            case "PUSH":
+            case "JOIN":
+                if (operands != 1) {
+                    return operandCount(opcode);
+                }
+                return is(parts[1].toUpperCase(), VALUE) ? null : invalid("", opcode);
+            case "JMP":
+            case "JZ":
+            case "JE":
+            case "JNZ":
+            case "JNE":
+            case "JG":
+            case "JL":
+            case "JGE":
+            case "JLE":
+            case "JC":
+            case "JB":
+            case "JNC":
+            case "JAE":
+            case "JA":
+            case "JBE":
+            case "JO":
+            case "JNO":
+            case "JS":
+            case "JNS":
+            case "JP":
+            case "JNP":
+            case "JCXZ":
+            case "JECXZ":
+            case "LOOP":
+            case "LOOPZ":
+            case "LOOPE":
+            case "LOOPNZ":
+            case "LOOPNE":
+            case "CALL":
+            case "SPAWN":
+                if (operands != 1) {
+                    return operandCount(opcode);
+                }
+                return labels.containsKey(parts[1]) ? null : "Syntax error: Undefined label " + parts[1];
+            case "PRINT_REG":
+            case "PRINT_FLAG":
+            case "LENGTHOF":
+            case "SIZEOF":
+            case "PTR":
+            case "OFFSET":
+                return operands == 1 ? null : invalid("", opcode);
+            case "PRINT_MEM":
+                return operands == 1 ? null : operandCount(opcode);
+            case "PRINT":
+                if (operands != 1) {
+                    return operandCount(opcode);
+                }
+                return is(parts[1].toUpperCase(), REGISTER | VARIABLE) ? null : invalid("", opcode);
+            case "EQU":
+            case "TEXTEQU":
+            case "=":
+                return operands == 2 ? null : operandCount(opcode);
+            case "INT":
+                if (operands != 1) {
+                    return operandCount(opcode);
+                }
+                String vector = parts[1].toUpperCase();
+                if (vector.equals("80H") || is(vector, REGISTER | VARIABLE | INDIRECT)) {
+                    return null; // A register is checked when the interrupt is raised
+                }
+                return is(vector, NUMBER) && Integer.parseInt(vector) == 128 ? null : "Syntax error: Unsupported interrupt " + parts[1];
+            case "REP":
+            case "REPE":
+            case "REPZ":
+            case "REPNE":
+            case "REPNZ":
+                if (operands != 1) {
+                    return "Syntax error: Invalid number of operands for " + opcode + " prefix";
+                }
+                String op = parts[1].toUpperCase();
+                if (op.length() != 5 || !"MOVS STOS LODS CMPS SCAS".contains(op.substring(0, 4)) || "BWD".indexOf(op.charAt(4)) < 0) {
+                    return "Syntax error: " + opcode + " prefix requires a string instruction, found " + op;
+                }
+                return null;
+            case "MOVDQU":
+            case "VMOVDQU": {
+                if (operands != 2) {
+                    return operandCount(opcode);
+                }
+                String dest = parts[1].toUpperCase();
+                String src = parts[2].toUpperCase();
+                if (isIndirect(dest) && CPU.isVectorRegister(src)) {
+                    return null;
+                }
+                return CPU.isVectorRegister(dest) ? packedSource(src, CPU.getVectorLanes(dest), opcode) : invalid("", opcode);
+            }
+            case "MOVD":
+            case "VMOVD": {
+                if (operands != 2) {
+                    return operandCount(opcode);
+                }
+                String dest = parts[1].toUpperCase();
+                String src = parts[2].toUpperCase();
+                boolean load = dest.startsWith("XMM") && CPU.isVectorRegister(dest) && is(src, VALUE);
+                boolean store = src.startsWith("XMM") && CPU.isVectorRegister(src) && is(dest, REGISTER | VARIABLE | INDIRECT);
+                return load || store ? null : invalid("", opcode);
+            }
+            case "PEXTRD":
+            case "VPEXTRD": {
+                if (operands != 3) {
+                    return operandCount(opcode);
+                }
+                String src = parts[2].toUpperCase();
+                if (!is(parts[1].toUpperCase(), REGISTER) || !src.startsWith("XMM") || !CPU.isVectorRegister(src)
+                        || !Assembler.isNumeric(parts[3])) {
+                    return invalid("", opcode);
+                }
+                return null;
+            }
+            case "VPBROADCASTD":
+                if (operands != 2) {
+                    return operandCount(opcode);
+                }
+                if (!CPU.isVectorRegister(parts[1].toUpperCase())) {
+                    return invalid("destination ", opcode);
+                }
+                String value = parts[2].toUpperCase();
+                return CPU.isVectorRegister(value) || is(value, VALUE) ? null : invalid("source ", opcode);
+            case "PADDD":
+            case "VPADDD":
+            case "PSUBD":
+            case "VPSUBD":
+            case "PMULLD":
+            case "VPMULLD":
+            case "PAND":
+            case "VPAND":
+            case "POR":
+            case "VPOR":
+            case "PXOR":
+            case "VPXOR":
+            case "PCMPEQD":
+            case "VPCMPEQD":
+            case "PCMPGTD":
+            case "VPCMPGTD": {
+                boolean vex = opcode.startsWith("V");
+                if (operands != (vex ? 3 : 2)) {
+                    return operandCount(opcode);
+                }
+                String dest = parts[1].toUpperCase();
+                String first = vex ? parts[2].toUpperCase() : dest;
+                if (!CPU.isVectorRegister(dest) || !CPU.isVectorRegister(first)) {
+                    return invalid("", opcode);
+                }
+                int lanes = CPU.getVectorLanes(dest);
+                if (CPU.getVectorLanes(first) != lanes) {
+                    return "Syntax error: Size mismatch between vector registers for " + opcode + " operation";
+                }
+                return packedSource(parts[operands].toUpperCase(), lanes, opcode);
+            }
+            default:
+                if (isOpcode(opcode) || opcode.endsWith(":")) {
+                    return null; // No operands to check
+                }
+                if (inData) {
+                    return checkDefinition(parts);
+                }
+                return "Syntax error: Unsupported instruction " + parts[0];
+        }
+    }
+
+    // Opcodes without operands the interpreter runs, besides the ones check() looks at
+    private static boolean isOpcode(String opcode) {
+        switch (opcode) {
+            case "STC":
+            case "CLC":
+            case "STD":
+            case "CLD":
+            case "RET":
+            case "YIELD":
+            case "SYSCALL":
+            case "SHOW_STACK":
+            case "SHOW_DATA":
+            case ".CODE":
+            case ".DATA":
+            case ".STACK":
+            case "MOVSB":
+            case "MOVSW":
+            case "MOVSD":
+            case "STOSB":
+            case "STOSW":
+            case "STOSD":
+            case "LODSB":
+            case "LODSW":
+            case "LODSD":
+            case "CMPSB":
+            case "CMPSW":
+            case "CMPSD":
+            case "SCASB":
+            case "SCASW":
+            case "SCASD":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static String checkDefinition(String[] parts) {
+        if (parts.length < 3) {
+            return "Syntax error: Invalid variable definition " + String.join(" ", parts);
+        }
+        String type = parts[1].toUpperCase();
+        if (!Program.isDataType(type)) {
+            return "Unsupported data type: " + type;
+        }
+        for (int i = 2; i < parts.length; i++) {
+            try {
+                Long.parseLong(parts[i]);
+            } catch (NumberFormatException e) {
+                return "Syntax error: Invalid value " + parts[i] + " for " + parts[0].toUpperCase();
+            }
+        }
+        return null;
+    }
+
+    private static final int REGISTER = 1;
+    private static final int VARIABLE = 2;
+    private static final int NUMBER = 4;
+    private static final int INDIRECT = 8;
+    private static final int VALUE = REGISTER | VARIABLE | NUMBER | INDIRECT; // Anything getValue reads
+
+    private String binary(String[] parts, String opcode, int destKinds, int srcKinds, boolean sameSize) {
+        if (parts.length != 3) {
+            return operandCount(opcode);
+        }
+        String dest = parts[1].toUpperCase();
+        String src = parts[2].toUpperCase();
+        if (!is(dest, destKinds)) {
+            return invalid("destination ", opcode);
+        }
+        if (!is(src, srcKinds)) {
+            return invalid("source ", opcode);
+        }
+        if (sameSize && CPU.isRegister(dest) && CPU.isRegister(src) && Assembler.getRegisterSize(dest) != Assembler.getRegisterSize(src)) {
+            return "Syntax error: Size mismatch between source and destination registers for " + opcode + " operation";
+        }
+        return null;
+    }
+
+    private boolean is(String operand, int kinds) {
+        return (kinds & REGISTER) != 0 && CPU.isRegister(operand)
+                || (kinds & VARIABLE) != 0 && variables.contains(operand)
+                || (kinds & NUMBER) != 0 && Assembler.isNumeric(operand)
+                || (kinds & INDIRECT) != 0 && isIndirect(operand);
+    }
+
+    // [REGISTER] or [REGISTER+OFFSET], with or without a PTR size
+    private static boolean isIndirect(String operand) {
+        return MemoryOperand.decode(operand) != null;
+    }
+
+    // A PTR size has to match the register on the other side. Vector instructions only take
+    // DWORD PTR where they read or write one lane, and QWORD PTR is only a MOV of a number.
+    private static String checkPtrSizes(String[] parts) {
+        String opcode = parts[0].toUpperCase();
+        for (int i = 1; i < parts.length; i++) {
+            MemoryOperand memory = MemoryOperand.decode(parts[i].toUpperCase());
+            if (memory == null || memory.size == 0) {
+                continue;
+            }
+            String other = parts.length == 3 ? parts[3 - i].toUpperCase() : null;
+            boolean fits;
+            switch (opcode) {
+                case "MOVSX":
+                case "MOVZX":
+                    fits = true; // Checked with the operands
+                    break;
+                case "MOVD":
+                case "VMOVD":
+                case "VPBROADCASTD":
+                    fits = memory.size == 4;
+                    break;
+                default:
+                    if (hasVectorRegister(parts)) {
+                        fits = false;
+                    } else if (memory.size == 8) {
+                        fits = opcode.equals("MOV") && i == 1 && Assembler.isNumeric(other);
+                    } else {
+                        fits = other == null || !CPU.isRegister(other) || Assembler.getRegisterSize(other) == memory.size * 8;
+                    }
+            }
+            if (!fits) {
+                return "Syntax error: Size mismatch for " + parts[i].substring(0, parts[i].indexOf(' ')) + " PTR operand of " + opcode + " operation";
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasVectorRegister(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            if (CPU.isVectorRegister(parts[i].toUpperCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String packedSource(String operand, int lanes, String opcode) {
+        if (CPU.isVectorRegister(operand)) {
+            return CPU.getVectorLanes(operand) == lanes ? null
+                    : "Syntax error: Size mismatch between vector registers for " + opcode + " operation";
+        }
+        return isIndirect(operand) ? null : invalid("source ", opcode);
+    }
+
+    private static String operandCount(String opcode) {
+        return "Syntax error: Invalid number of operands for " + opcode + " operation";
+    }
+
+    private static String invalid(String which, String opcode) {
+        return "Syntax error: Invalid " + which + "operand for " + opcode + " operation";
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Data watchpoints on guest address ranges. PagedMemory marks every page a watchpoint covers
+// and keeps those pages out of its translation caches, so only accesses that touch a marked
+// page call in here and memory that is not watched costs nothing extra. A watchpoint reports
+// reads, writes, or writes that change the watched bytes; those keep a copy of the range to
+// compare against. Addresses are unsigned, like in PagedMemory.
+class Watchpoints {
+    static final int READ = 1;
+    static final int WRITE = 2;
+    static final int CHANGE = 4;
+
+    interface Handler {
+        // Called on the thread that runs the program, right after the access. kind is the one
+        // kind that fired, address and length the part of the access inside the watched range.
+        void onHit(Watchpoint watchpoint, int kind, int address, int length);
+    }
+
+    static class Watchpoint {
+        final int address;
+        final int length;
+        final int kinds;
+        final Handler handler;
+        private byte[] value; // The watched bytes as last seen, only kept for CHANGE
+
+        Watchpoint(int address, int length, int kinds, Handler handler) {
+            this.address = address;
+            this.length = length;
+            this.kinds = kinds;
+            this.handler = handler;
+        }
+
+        byte[] value() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            if ((kinds & READ) != 0) {
+                sb.append("read ");
+            }
+            if ((kinds & WRITE) != 0) {
+                sb.append("write ");
+            }
+            if ((kinds & CHANGE) != 0) {
+                sb.append("change ");
+            }
+            return sb.append(address).append("..").append(address + length - 1).toString();
+        }
+    }
+
+    private final List<Watchpoint> all = new ArrayList<>();
+    private byte[] scratch = new byte[0]; // The bytes of a write, for the CHANGE compare
+
+    Watchpoint add(int address, int length, int kinds, Handler handler, PagedMemory memory) {
+        Watchpoint watchpoint = new Watchpoint(address, length, kinds, handler);
+        if ((kinds & CHANGE) != 0) {
+            watchpoint.value = new byte[length];
+            memory.peek(address, watchpoint.value, 0, length);
+        }
+        all.add(watchpoint);
+        return watchpoint;
+    }
+
+    boolean remove(Watchpoint watchpoint) {
+        return all.remove(watchpoint);
+    }
+
+    List<Watchpoint> all() {
+        return all;
+    }
+
+    // The memory was reset or restored, changes are compared against what it holds from now on
+    void reset(PagedMemory memory) {
+        for (Watchpoint watchpoint : all) {
+            if (watchpoint.value != null) {
+                memory.peek(watchpoint.address, watchpoint.value, 0, watchpoint.length);
+            }
+        }
+    }
+
+    void read(int address, int length) {
+        for (int i = 0; i < all.size(); i++) {
+            Watchpoint watchpoint = all.get(i);
+            if ((watchpoint.kinds & READ) != 0) {
+                hit(watchpoint, READ, address, length);
+            }
+        }
+    }
+
+    void written(PagedMemory memory, int address, int length) {
+        for (int i = 0; i < all.size(); i++) {
+            Watchpoint watchpoint = all.get(i);
+            if ((watchpoint.kinds & WRITE) != 0) {
+                hit(watchpoint, WRITE, address, length);
+            }
+            if (watchpoint.value != null && overlaps(watchpoint, address, length)) {
+                int start = start(watchpoint, address);
+                int end = end(watchpoint, address, length);
+                int offset = start - watchpoint.address;
+                if (scratch.length < end - start) {
+                    scratch = new byte[end - start];
+                }
+                memory.peek(start, scratch, 0, end - start);
+                if (Arrays.mismatch(scratch, 0, end - start, watchpoint.value, offset, offset + end - start) >= 0) {
+                    System.arraycopy(scratch, 0, watchpoint.value, offset, end - start);
+                    watchpoint.handler.onHit(watchpoint, CHANGE, start, end - start);
+                }
+            }
+        }
+    }
+
+    private static void hit(Watchpoint watchpoint, int kind, int address, int length) {
+        if (overlaps(watchpoint, address, length)) {
+            int start = start(watchpoint, address);
+            watchpoint.handler.onHit(watchpoint, kind, start, end(watchpoint, address, length) - start);
+        }
+    }
+
+    private static boolean overlaps(Watchpoint watchpoint, int address, int length) {
+        long from = Integer.toUnsignedLong(address);
+        long watched = Integer.toUnsignedLong(watchpoint.address);
+        return from < watched + watchpoint.length && watched < from + length;
+    }
+
+    // Where the overlap of an access with the watched range starts and ends
+    private static int start(Watchpoint watchpoint, int address) {
+        return (int) Math.max(Integer.toUnsignedLong(address), Integer.toUnsignedLong(watchpoint.address));
+    }
+
+    private static int end(Watchpoint watchpoint, int address, int length) {
+        return (int) Math.min(Integer.toUnsignedLong(address) + length,
+                Integer.toUnsignedLong(watchpoint.address) + watchpoint.length);
+    }
+}
@@ -0,0 +1,43 @@
+.CODE
+MOV EAX, 12345
+MOV EBX, 0
+MOV ECX, 20000
+MOV ESI, 0
+MOV EDI, 0
+MOV EBP, 0
+step:
+MOV EDX, EAX
+ADD EAX, EAX
+ADD EAX, EAX
+ADD EAX, EDX
+ADD EAX, 13
+JC carried
+JS negative
+TEST EAX, 1
+JZ even
+INC EBX
+JMP parity
+even:
+INC ESI
+parity:
+JP next
+INC EDI
+JMP next
+negative:
+XOR EDX, EAX
+AND EDX, 255
+CMP EDX, 128
+JG next
+INC EBP
+JMP next
+carried:
+SUB EBP, 1
+JNO next
+INC EBP
+next:
+DEC ECX
+JNZ step
+PRINT EBX
+PRINT ESI
+PRINT EDI
+PRINT EBP
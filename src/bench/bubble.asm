@@ -0,0 +1,236 @@
+.DATA
+arr0 DWORD 418, 532, 554, 718, 882, 119, 180, 388, 230, 296, 29, 230, 119, 582, 9, 102
+arr1 DWORD 160, 793, 526, 705, 310, 710, 649, 387, 605, 414, 784, 707, 686, 333, 366, 75
+arr2 DWORD 346, 861, 289, 632, 162, 114, 523, 71, 602, 96, 276, 981, 322, 110, 965, 640
+arr3 DWORD 841, 992, 296, 35, 352, 395, 98, 488, 487, 938, 195, 193, 133, 264, 765, 253
+.CODE
+MOV EDI, 0
+MOV EAX, ARR0[0]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[1]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[2]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[3]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[4]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[5]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[6]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[7]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[8]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[9]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[10]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[11]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[12]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[13]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[14]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR0[15]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[0]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[1]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[2]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[3]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[4]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[5]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[6]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[7]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[8]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[9]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[10]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[11]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[12]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[13]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[14]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR1[15]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[0]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[1]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[2]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[3]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[4]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[5]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[6]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[7]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[8]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[9]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[10]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[11]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[12]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[13]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[14]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR2[15]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[0]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[1]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[2]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[3]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[4]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[5]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[6]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[7]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[8]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[9]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[10]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[11]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[12]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[13]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[14]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EAX, ARR3[15]
+MOV [EDI], EAX
+ADD EDI, 4
+MOV EBP, 63
+outer:
+MOV ESI, 0
+MOV ECX, EBP
+inner:
+MOV EAX, [ESI]
+MOV EBX, [ESI+4]
+CMP EAX, EBX
+JLE noswap
+MOV [ESI], EBX
+MOV [ESI+4], EAX
+noswap:
+ADD ESI, 4
+DEC ECX
+JNZ inner
+DEC EBP
+JNZ outer
+MOV ESI, 0
+MOV EAX, [ESI]
+PRINT EAX
+MOV ESI, 252
+MOV EAX, [ESI]
+PRINT EAX
+MOV ESI, 0
+MOV EDX, 0
+MOV ECX, 63
+check:
+MOV EAX, [ESI]
+MOV EBX, [ESI+4]
+CMP EAX, EBX
+JLE ordered
+INC EDX
+ordered:
+ADD ESI, 4
+DEC ECX
+JNZ check
+PRINT EDX
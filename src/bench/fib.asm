@@ -0,0 +1,22 @@
+.CODE
+MOV EAX, 20
+CALL fib
+PRINT EBX
+JMP done
+fib:
+CMP EAX, 2
+JL small
+PUSH EAX
+DEC EAX
+CALL fib
+POP EAX
+PUSH EBX
+SUB EAX, 2
+CALL fib
+POP EDX
+ADD EBX, EDX
+RET
+small:
+MOV EBX, EAX
+RET
+done:
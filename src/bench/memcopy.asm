@@ -0,0 +1,36 @@
+.CODE
+MOV EBP, 16
+pass:
+MOV EDI, 0
+MOV EAX, EBP
+MOV ECX, 1023
+fill:
+MOV [EDI], EAX
+ADD EDI, 4
+LOOP fill
+MOV ESI, 0
+MOV EDI, 4096
+MOV ECX, 1024
+copy:
+MOV EAX, [ESI]
+MOV [EDI], EAX
+ADD ESI, 4
+ADD EDI, 4
+DEC ECX
+JNZ copy
+MOV ESI, 4096
+MOV EDI, 8192
+MOV ECX, 1024
+CLD
+REP MOVSD
+MOV ESI, 8192
+MOV EBX, 0
+MOV ECX, 1023
+sum:
+MOV EAX, [ESI]
+ADD EBX, EAX
+ADD ESI, 4
+LOOP sum
+DEC EBP
+JNZ pass
+PRINT EBX
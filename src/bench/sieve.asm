@@ -0,0 +1,21 @@
+.CODE
+MOV ESI, 8
+MOV EBX, 0
+next:
+MOV EAX, [ESI]
+CMP EAX, 0
+JNE composite
+INC EBX
+MOV EDX, ESI
+ADD EDX, ESI
+cross:
+CMP EDX, 32000
+JGE composite
+MOV [EDX], 1
+ADD EDX, ESI
+JMP cross
+composite:
+ADD ESI, 4
+CMP ESI, 32000
+JL next
+PRINT EBX